@@ -0,0 +1,192 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the number of concurrently active transfers.
+ *
+ * Requests over the limit wait in a short FIFO queue; when the queue is full
+ * (or the wait takes too long) the caller is expected to answer with
+ * 503 and {@link #getRetryAfterSeconds()}.
+ */
+public class AdmissionControl {
+    public static final int DEFAULT_QUEUE = 16;
+    public static final long DEFAULT_QUEUE_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+    public static final int DEFAULT_RETRY_AFTER = 5;
+
+    private volatile int maxActive;
+    private volatile int maxQueued;
+    private final long queueTimeoutMillis;
+    private final int retryAfterSeconds;
+
+    private int active = 0;
+    private final ArrayDeque<Ticket> queue = new ArrayDeque<>();
+
+    /**
+     * @param maxActive concurrent transfers, 0 for unlimited
+     * @param maxQueued transfers allowed to wait for a free slot
+     */
+    public AdmissionControl(int maxActive, int maxQueued) {
+        this(maxActive, maxQueued, DEFAULT_QUEUE_TIMEOUT, DEFAULT_RETRY_AFTER);
+    }
+
+    public AdmissionControl(int maxActive, int maxQueued, long queueTimeoutMillis, int retryAfterSeconds) {
+        this.maxActive = Math.max(0, maxActive);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * A granted transfer slot, releasing more than once has no effect.
+     */
+    public class Permit implements Runnable {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        public void release() {
+            if(released.compareAndSet(false, true)) {
+                AdmissionControl.this.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            release();
+        }
+    }
+
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    public synchronized void setMaxActive(int maxActive) {
+        this.maxActive = Math.max(0, maxActive);
+        notifyAll();
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = Math.max(0, maxQueued);
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public synchronized int getActive() {
+        return active;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    private boolean hasSlot() {
+        return maxActive <= 0 || active < maxActive;
+    }
+
+    /**
+     * A place in line, see {@link #enqueue()}.
+     */
+    public class Ticket {
+        private final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+
+        public long getRemainingMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        }
+
+        public boolean isExpired() {
+            return deadline - System.nanoTime() <= 0;
+        }
+    }
+
+    /**
+     * Waits in line for a transfer slot.
+     *
+     * @return the permit or null if the queue is full or the wait timed out
+     */
+    public synchronized Permit acquire() throws InterruptedException {
+        Ticket ticket = enqueue();
+        if(ticket == null) {
+            return null;
+        }
+        try {
+            Permit permit;
+            while((permit = poll(ticket)) == null) {
+                long left = ticket.getRemainingMillis();
+                if(left <= 0) {
+                    return null;
+                }
+                wait(left);
+            }
+            return permit;
+        } finally {
+            cancel(ticket);
+        }
+    }
+
+    /**
+     * Gets in line without waiting, for callers that cannot block.
+     * The ticket has to be {@link #poll(Ticket) polled} until it yields a permit or
+     * {@link #cancel(Ticket) cancelled}.
+     *
+     * @return the ticket or null if the queue is full
+     */
+    public synchronized Ticket enqueue() {
+        if(!(queue.isEmpty() && hasSlot()) && queue.size() >= maxQueued) {
+            return null;
+        }
+        Ticket ticket = new Ticket();
+        queue.addLast(ticket);
+        return ticket;
+    }
+
+    /**
+     * @return the permit if the ticket is first in line and a slot is free, null otherwise
+     */
+    public synchronized Permit poll(Ticket ticket) {
+        if(queue.peekFirst() != ticket || !hasSlot()) {
+            return null;
+        }
+        queue.removeFirst();
+        active++;
+        // the next ticket may be served as well
+        notifyAll();
+        return new Permit();
+    }
+
+    /**
+     * Leaves the line, has no effect if the ticket was already served.
+     */
+    public synchronized void cancel(Ticket ticket) {
+        if(queue.remove(ticket)) {
+            notifyAll();
+        }
+    }
+
+    private synchronized void release() {
+        active--;
+        notifyAll();
+    }
+}
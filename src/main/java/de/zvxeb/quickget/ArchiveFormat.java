@@ -0,0 +1,58 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.util.List;
+
+/**
+ * Archive formats a set of files can be downloaded as (see {@link ArchiveStream}).
+ */
+public enum ArchiveFormat {
+    ZIP("application/zip", "zip"),
+    TAR("application/x-tar", "tar");
+
+    public final String mimeType;
+    public final String extension;
+
+    ArchiveFormat(String mimeType, String extension) {
+        this.mimeType = mimeType;
+        this.extension = extension;
+    }
+
+    public ArchiveStream open(List<DirectoryIndex.Entry> entries) {
+        return this == ZIP ? new ZipArchiveStream(entries) : new TarArchiveStream(entries);
+    }
+
+    /**
+     * @return the length of the archive or -1 if it is only known once it was produced
+     */
+    public long length(List<DirectoryIndex.Entry> entries) {
+        return this == TAR ? TarArchiveStream.length(entries) : -1;
+    }
+
+    /**
+     * @return the format for the value of the archive request parameter, null if there is none
+     */
+    public static ArchiveFormat fromParameter(String value) {
+        for(ArchiveFormat format : values()) {
+            if(format.extension.equalsIgnoreCase(value)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An archive produced while it is read, as a sequence of segments (headers, file contents, ...).
+ *
+ * A segment is only created when the previous one is exhausted, so files are opened one
+ * at a time and nothing is produced ahead of the reader.
+ */
+public abstract class ArchiveStream extends InputStream {
+    protected static final InputStream EMPTY = new ByteArrayInputStream(new byte[0]);
+
+    private InputStream current = EMPTY;
+    private boolean finished = false;
+
+    /**
+     * @return the next segment or null after the last one
+     */
+    protected abstract InputStream next() throws IOException;
+
+    @Override
+    public int read() throws IOException {
+        byte [] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n <= 0 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        while(!finished) {
+            int n = current.read(b, off, len);
+            if(n > 0) {
+                return n;
+            }
+            current.close();
+            current = next();
+            if(current == null) {
+                current = EMPTY;
+                finished = true;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        current.close();
+    }
+}
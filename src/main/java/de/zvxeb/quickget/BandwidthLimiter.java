@@ -0,0 +1,195 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Global and per client bandwidth caps based on lock-free token buckets.
+ *
+ * Every client (remote address) has its own bucket whose rate is the smaller of the
+ * per client cap and an equal share of the global cap among recently active clients,
+ * so bandwidth of idle clients goes to the active ones. All buckets also draw from
+ * the global bucket. A rate of 0 means unlimited; limits can be changed at any time.
+ */
+public class BandwidthLimiter {
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long ACTIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long EXPIRE_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long REFRESH_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private static final long UNLIMITED_CHUNK = 8 * 1024 * 1024;
+    private static final long MIN_CHUNK = 4 * 1024;
+    private static final long MAX_CHUNK = 1024 * 1024;
+
+    /**
+     * Virtual scheduling (GCRA) bucket: the theoretical arrival time is advanced by the cost
+     * of each transfer with a CAS, at most {@link #BURST_NANOS} of unused credit is kept.
+     */
+    static class TokenBucket {
+        private volatile long rate;
+        private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+        private volatile long lastUse = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+        }
+
+        /**
+         * @return nanoseconds to wait before the bytes may be sent
+         */
+        long reserve(long bytes) {
+            long now = System.nanoTime();
+            lastUse = now;
+            long r = rate;
+            if(r <= 0) {
+                return 0;
+            }
+            long cost = bytes * 1_000_000_000L / r;
+            while(true) {
+                long previous = theoreticalArrival.get();
+                long next = Math.max(previous, now - BURST_NANOS) + cost;
+                if(theoreticalArrival.compareAndSet(previous, next)) {
+                    return Math.max(0, next - now);
+                }
+            }
+        }
+    }
+
+    private final TokenBucket global;
+    private volatile long clientRate;
+    private volatile long shareRate;
+    private final AtomicLong lastRefresh = new AtomicLong(System.nanoTime());
+    private final Map<String, TokenBucket> clients = new ConcurrentHashMap<>();
+
+    /**
+     * @param globalRate bytes per second for all clients together, 0 for unlimited
+     * @param clientRate bytes per second for a single client, 0 for unlimited
+     */
+    public BandwidthLimiter(long globalRate, long clientRate) {
+        this.global = new TokenBucket(Math.max(0, globalRate));
+        this.clientRate = Math.max(0, clientRate);
+        this.shareRate = this.global.rate;
+    }
+
+    public long getGlobalRate() {
+        return global.rate;
+    }
+
+    public void setGlobalRate(long globalRate) {
+        global.rate = Math.max(0, globalRate);
+        lastRefresh.set(0);
+    }
+
+    public long getClientRate() {
+        return clientRate;
+    }
+
+    public void setClientRate(long clientRate) {
+        this.clientRate = Math.max(0, clientRate);
+    }
+
+    public boolean isLimited() {
+        return global.rate > 0 || clientRate > 0;
+    }
+
+    public Client client(String address) {
+        return new Client(clients.computeIfAbsent(address, a -> new TokenBucket(0)));
+    }
+
+    private void refresh(long now) {
+        long last = lastRefresh.get();
+        if(now - last < REFRESH_NANOS || !lastRefresh.compareAndSet(last, now)) {
+            return;
+        }
+        int active = 0;
+        for(Iterator<TokenBucket> it = clients.values().iterator(); it.hasNext(); ) {
+            TokenBucket bucket = it.next();
+            long idle = now - bucket.lastUse;
+            if(idle < ACTIVE_NANOS) {
+                active++;
+            } else if(idle > EXPIRE_NANOS) {
+                it.remove();
+            }
+        }
+        long g = global.rate;
+        shareRate = g <= 0 ? 0 : g / Math.max(1, active);
+    }
+
+    private long effectiveClientRate() {
+        long cap = clientRate;
+        long share = shareRate;
+        if(cap <= 0) return share;
+        if(share <= 0) return cap;
+        return Math.min(cap, share);
+    }
+
+    /**
+     * Shaping handle for the transfers of one client.
+     */
+    public class Client {
+        private final TokenBucket bucket;
+
+        private Client(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+
+        /**
+         * @return how many bytes should be sent before calling {@link #acquire(long)}
+         */
+        public long chunkSize() {
+            long rate = effectiveClientRate();
+            if(rate <= 0) {
+                return UNLIMITED_CHUNK;
+            }
+            // about 20 acquires per second
+            return Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, rate / 20));
+        }
+
+        /**
+         * Accounts for bytes that were or are about to be sent without blocking.
+         *
+         * @return nanoseconds to wait before sending more
+         */
+        public long reserve(long bytes) {
+            refresh(System.nanoTime());
+            bucket.rate = effectiveClientRate();
+            return Math.max(bucket.reserve(bytes), global.reserve(bytes));
+        }
+
+        /**
+         * Accounts for bytes that were or are about to be sent and blocks as long as needed.
+         */
+        public void acquire(long bytes) throws IOException {
+            long wait = reserve(bytes);
+            if(wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while shaping");
+                }
+            }
+        }
+    }
+}
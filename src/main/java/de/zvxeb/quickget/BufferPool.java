@@ -0,0 +1,260 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Size classed pool of direct buffers that response bodies borrow for copying to the socket.
+ *
+ * Returned buffers go to a small per-thread stripe first and to a shared queue per size class
+ * when the stripe is full, so threads mostly take back what they returned without contention.
+ * Stripes are picked by thread id instead of being thread locals, as NanoHTTPD starts a new
+ * thread (or virtual thread) per connection and thread local buffers would be lost with it.
+ *
+ * Direct memory never exceeds the capacity; if every buffer is in use, leases get a plain heap
+ * buffer that is not pooled. With leak detection, leases that are garbage collected without
+ * being closed are logged with the place they were acquired and their buffer is reclaimed.
+ */
+public class BufferPool {
+    private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+
+    public static final long DEFAULT_CAPACITY = 32L * 1024 * 1024;
+    public static final int MIN_SIZE = 8 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+    /**
+     * Buffer size for copying large bodies (larger buffers hardly reduce the system calls needed)
+     */
+    public static final int TRANSFER_SIZE = 64 * 1024;
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+    private static final int STRIPE_SLOTS = 2;
+
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private final long capacity;
+    private final boolean leakDetection;
+    private final int stripeMask;
+    private final AtomicReferenceArray<ByteBuffer> stripes;
+    private final List<Queue<ByteBuffer>> shared;
+
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    /**
+     * A borrowed buffer, close it to return the buffer.
+     */
+    public static final class Lease implements AutoCloseable {
+        public final ByteBuffer buffer;
+        private final Release release;
+        private final Cleaner.Cleanable cleanable;
+
+        private Lease(ByteBuffer buffer, Release release, boolean track) {
+            this.buffer = buffer;
+            this.release = release;
+            this.cleanable = track && release != null ? cleaner.register(this, release) : null;
+        }
+
+        /**
+         * @return true if the buffer is direct memory from the pool
+         */
+        public boolean isPooled() {
+            return release != null;
+        }
+
+        @Override
+        public void close() {
+            if(release == null) {
+                return;
+            }
+            release.closed = true;
+            if(cleanable != null) {
+                cleanable.clean();
+            } else {
+                release.run();
+            }
+        }
+    }
+
+    /**
+     * Returns the buffer once, also run by the cleaner for leases that were not closed.
+     */
+    private final class Release implements Runnable {
+        private final ByteBuffer buffer;
+        private final Throwable acquired;
+        private volatile boolean closed = false;
+        private boolean done = false;
+
+        Release(ByteBuffer buffer, Throwable acquired) {
+            this.buffer = buffer;
+            this.acquired = acquired;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if(done) {
+                    return;
+                }
+                done = true;
+            }
+            if(!closed) {
+                leaks.incrementAndGet();
+                log.warn("Buffer of {} bytes was not returned", buffer.capacity(), acquired);
+            }
+            give(buffer);
+        }
+    }
+
+    public BufferPool(long capacity) {
+        this(capacity, log.isDebugEnabled());
+    }
+
+    /**
+     * @param leakDetection track leases to find the ones never closed (costs a stack trace per lease)
+     */
+    public BufferPool(long capacity, boolean leakDetection) {
+        this.capacity = Math.max(0, capacity);
+        this.leakDetection = leakDetection;
+        int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1;
+        this.stripeMask = stripeCount - 1;
+        this.stripes = new AtomicReferenceArray<>(stripeCount * CLASSES * STRIPE_SLOTS);
+        this.shared = new ArrayList<>(CLASSES);
+        for(int i=0; i<CLASSES; i++) {
+            shared.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return direct memory allocated by the pool, idle or leased
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * @return number of leases handed out
+     */
+    public long getLeases() {
+        return leases.get();
+    }
+
+    /**
+     * @return number of direct buffers allocated (leases not served from the pool)
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * @return number of leases that got a heap buffer because the capacity was exhausted
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    /**
+     * @return number of leases found unclosed by the leak detection
+     */
+    public long getLeaks() {
+        return leaks.get();
+    }
+
+    /**
+     * @param size wanted buffer size, the buffer may be larger or (above {@link #MAX_SIZE}) smaller
+     * @return lease of a cleared buffer with exactly the given (or maximum) size remaining
+     */
+    public Lease acquire(int size) {
+        size = Math.max(1, Math.min(size, MAX_SIZE));
+        int sizeClass = sizeClass(size);
+        leases.incrementAndGet();
+
+        ByteBuffer buffer = take(sizeClass);
+        if(buffer == null) {
+            int classSize = MIN_SIZE << sizeClass;
+            if(allocated.addAndGet(classSize) > capacity) {
+                allocated.addAndGet(-classSize);
+                overflows.incrementAndGet();
+                return new Lease(ByteBuffer.allocate(size), null, false);
+            }
+            allocations.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(classSize);
+        }
+        buffer.clear().limit(size);
+        Throwable acquired = leakDetection ? new Throwable("Acquired here") : null;
+        return new Lease(buffer, new Release(buffer, acquired), leakDetection);
+    }
+
+    private ByteBuffer take(int sizeClass) {
+        int base = stripeBase(sizeClass);
+        for(int i=0; i<STRIPE_SLOTS; i++) {
+            if(stripes.get(base + i) != null) {
+                ByteBuffer buffer = stripes.getAndSet(base + i, null);
+                if(buffer != null) {
+                    return buffer;
+                }
+            }
+        }
+        return shared.get(sizeClass).poll();
+    }
+
+    private void give(ByteBuffer buffer) {
+        int sizeClass = sizeClass(buffer.capacity());
+        int base = stripeBase(sizeClass);
+        for(int i=0; i<STRIPE_SLOTS; i++) {
+            if(stripes.compareAndSet(base + i, null, buffer)) {
+                return;
+            }
+        }
+        shared.get(sizeClass).offer(buffer);
+    }
+
+    private int stripeBase(int sizeClass) {
+        int stripe = (int)(Thread.currentThread().getId() & stripeMask);
+        return (stripe * CLASSES + sizeClass) * STRIPE_SLOTS;
+    }
+
+    private static int sizeClass(int size) {
+        if(size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_SIZE);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d of %d bytes allocated, %d leases, %d allocations, %d overflows, %d leaks",
+            allocated.get(), capacity, leases.get(), allocations.get(), overflows.get(), leaks.get());
+    }
+}
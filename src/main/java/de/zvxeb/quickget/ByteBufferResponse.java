@@ -0,0 +1,72 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes cached content straight from a (heap or mapped) buffer to the socket channel.
+ *
+ * Heap content is staged through a pooled direct buffer if a buffer pool is set, otherwise
+ * the JDK copies it into a temporary direct buffer of its own for every write.
+ */
+public class ByteBufferResponse extends ChannelResponse {
+    private final ByteBuffer buffer;
+
+    public ByteBufferResponse(IStatus status, String mimeType, ByteBuffer buffer, Socket socket) {
+        super(status, mimeType, buffer.remaining(), socket);
+        this.buffer = buffer;
+    }
+
+    @Override
+    protected void transfer(WritableByteChannel target) throws IOException {
+        if(bufferPool != null && !buffer.isDirect()) {
+            copy(target);
+            return;
+        }
+        int limit = buffer.limit();
+        while(buffer.hasRemaining()) {
+            buffer.limit(buffer.position() + (int)Math.min(buffer.remaining(), chunkSize()));
+            int n = target.write(buffer);
+            buffer.limit(limit);
+            sent(n);
+        }
+    }
+
+    private void copy(WritableByteChannel target) throws IOException {
+        try(BufferPool.Lease lease = bufferPool.acquire(Math.min(buffer.remaining(), BufferPool.TRANSFER_SIZE))) {
+            ByteBuffer staging = lease.buffer;
+            int capacity = staging.limit();
+            int limit = buffer.limit();
+            while(buffer.hasRemaining()) {
+                staging.clear().limit((int)Math.min(Math.min(buffer.remaining(), chunkSize()), capacity));
+                buffer.limit(buffer.position() + staging.remaining());
+                staging.put(buffer);
+                buffer.limit(limit);
+                staging.flip();
+                int n = staging.remaining();
+                while(staging.hasRemaining()) {
+                    target.write(staging);
+                }
+                sent(n);
+            }
+        }
+    }
+}
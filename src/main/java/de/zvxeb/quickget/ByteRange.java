@@ -0,0 +1,169 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A single satisfiable byte range of a resource (start and end are inclusive).
+ */
+public class ByteRange {
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * Upper limit for ranges in a single request. Clients asking for more
+     * than this are most likely not download managers...
+     */
+    private static final int MAX_RANGES = 64;
+
+    public final long start;
+    public final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    public String contentRange(long totalLength) {
+        return String.format("bytes %d-%d/%d", start, end, totalLength);
+    }
+
+    public static String unsatisfiedContentRange(long totalLength) {
+        return String.format("bytes */%d", totalLength);
+    }
+
+    public static String multipartBoundary(long totalLength) {
+        return "QG" + Long.toHexString(System.nanoTime()) + Long.toHexString(totalLength);
+    }
+
+    /**
+     * @return the head of this range as part of a multipart/byteranges body
+     */
+    public byte [] partHeader(String boundary, String mimeType, long totalLength) {
+        return String.format(
+            "\r\n--%s\r\nContent-Type: %s\r\nContent-Range: %s\r\n\r\n",
+            boundary, mimeType, contentRange(totalLength)
+        ).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static byte [] multipartTrailer(String boundary) {
+        return String.format("\r\n--%s--\r\n", boundary).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the length of the multipart/byteranges body for the ranges, including part heads and trailer
+     */
+    public static long multipartLength(List<ByteRange> ranges, String boundary, String mimeType, long totalLength) {
+        long total = multipartTrailer(boundary).length;
+        for(ByteRange range : ranges) {
+            total += range.partHeader(boundary, mimeType, totalLength).length + range.length();
+        }
+        return total;
+    }
+
+    /**
+     * Parses the value of a Range header.
+     *
+     * @return null if the header is not a valid byte range specification (it should be ignored then),
+     * an empty list if no range can be satisfied or the sorted and coalesced list of ranges.
+     */
+    public static List<ByteRange> parse(String header, long totalLength) {
+        if(header == null) {
+            return null;
+        }
+        header = header.trim();
+        if(!header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+
+        String [] specs = header.substring(BYTES_UNIT.length()).split(",");
+        if(specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for(String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if(dash < 0) {
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            try {
+                if(first.isEmpty()) {
+                    // suffix range: last N bytes
+                    if(last.isEmpty()) {
+                        return null;
+                    }
+                    long suffix = Long.parseLong(last);
+                    if(suffix < 0) {
+                        return null;
+                    }
+                    if(suffix > 0 && totalLength > 0) {
+                        ranges.add(new ByteRange(Math.max(0, totalLength - suffix), totalLength - 1));
+                    }
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if(start < 0 || end < start) {
+                        return null;
+                    }
+                    if(start < totalLength) {
+                        ranges.add(new ByteRange(start, Math.min(end, totalLength - 1)));
+                    }
+                }
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+        }
+
+        return coalesce(ranges);
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if(ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(r -> r.start));
+        List<ByteRange> result = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for(int i=1; i<ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if(next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                result.add(current);
+                current = next;
+            }
+        }
+        result.add(current);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d-%d", start, end);
+    }
+}
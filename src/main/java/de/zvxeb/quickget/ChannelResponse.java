@@ -0,0 +1,151 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import fi.iki.elonen.NanoHTTPD;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed length response that writes its body directly to the socket channel.
+ *
+ * NanoHTTPD writes the headers (the body stream it sees is empty), then
+ * {@link #transfer(WritableByteChannel)} writes the body.
+ */
+public abstract class ChannelResponse extends NanoHTTPD.Response {
+    private static final Logger log = LoggerFactory.getLogger(ChannelResponse.class);
+
+    private static final byte [] NO_DATA = new byte[0];
+
+    /**
+     * Small enough that the progress of slow clients is still seen by the {@link TransferReaper}
+     */
+    public static final long PROGRESS_CHUNK = 256 * 1024;
+
+    protected final long length;
+    private final Socket socket;
+    private BandwidthLimiter.Client throttle;
+    private Transfers.Transfer transfer;
+    protected BufferPool bufferPool;
+    private final List<Runnable> closeActions = new ArrayList<>(2);
+
+    protected ChannelResponse(IStatus status, String mimeType, long length, Socket socket) {
+        super(status, mimeType, new ByteArrayInputStream(NO_DATA), length);
+        this.length = length;
+        this.socket = socket;
+    }
+
+    public void setThrottle(BandwidthLimiter.Client throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * @param bufferPool pool of direct buffers to copy the body through, null to let the kernel or JDK do it
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * @param transfer gets the progress of the body, it is written in chunks of at most {@link #PROGRESS_CHUNK} then
+     */
+    public void setTransfer(Transfers.Transfer transfer) {
+        this.transfer = transfer;
+    }
+
+    /**
+     * @param action run once the response is closed (after the body was sent)
+     */
+    public void onClose(Runnable action) {
+        closeActions.add(action);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            for(Runnable action : closeActions) {
+                action.run();
+            }
+            closeActions.clear();
+        }
+    }
+
+    protected abstract void transfer(WritableByteChannel target) throws IOException;
+
+    /**
+     * @return how many bytes to write before calling {@link #sent(long)}
+     */
+    protected long chunkSize() {
+        long size = throttle == null ? Long.MAX_VALUE : throttle.chunkSize();
+        return transfer == null ? size : Math.min(size, PROGRESS_CHUNK);
+    }
+
+    /**
+     * Accounts for written bytes, waits if the response is shaped.
+     */
+    protected void sent(long written) throws IOException {
+        if(transfer != null) {
+            transfer.add(written);
+        }
+        if(throttle != null) {
+            throttle.acquire(written);
+        }
+    }
+
+    /**
+     * Releases resources after the response was sent (or failed to).
+     */
+    protected void release() throws IOException {
+    }
+
+    @Override
+    protected void send(OutputStream outputStream) {
+        try {
+            super.send(outputStream);
+            if(getRequestMethod() != NanoHTTPD.Method.HEAD) {
+                WritableByteChannel target;
+                if(socket != null && socket.getChannel() != null) {
+                    target = socket.getChannel();
+                } else {
+                    // no channel available, the JDK falls back to copying
+                    target = Channels.newChannel(outputStream);
+                }
+                transfer(target);
+            }
+        } catch (IOException e) {
+            log.debug("Transfer aborted", e);
+            closeConnection(true);
+        } finally {
+            try {
+                release();
+            } catch (IOException e) {
+                log.debug("Could not release response", e);
+            }
+        }
+    }
+}
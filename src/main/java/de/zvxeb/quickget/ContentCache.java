@@ -0,0 +1,177 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory budgeted LRU cache for served file content.
+ *
+ * Small files are held as heap arrays, mid-size files are memory mapped and
+ * anything larger than the mapping limit is always read from disk.
+ * Entries are keyed by path, modification time and size, so a file that
+ * changes on disk simply misses the cache and replaces its stale entry.
+ */
+public class ContentCache {
+    private static final Logger log = LoggerFactory.getLogger(ContentCache.class);
+
+    public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+    public static final long HEAP_LIMIT = 1024 * 1024;
+    public static final long MAP_LIMIT = 512L * 1024 * 1024;
+
+    private final long budget;
+    private final long heapLimit;
+    private final long mapLimit;
+
+    private long used = 0;
+    private final LinkedHashMap<FileKey, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public ContentCache(long budget) {
+        this(budget, HEAP_LIMIT, MAP_LIMIT);
+    }
+
+    public ContentCache(long budget, long heapLimit, long mapLimit) {
+        this.budget = Math.max(0, budget);
+        this.heapLimit = heapLimit;
+        this.mapLimit = Math.min(mapLimit, this.budget);
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * @return a read-only buffer with the complete content of the file or null if it is not cacheable
+     */
+    public ByteBuffer get(File file) throws IOException {
+        FileKey key = FileKey.of(file);
+        return key == null ? null : get(key);
+    }
+
+    /**
+     * @return a read-only buffer with the content of the keyed file version or null if it is not cacheable
+     */
+    public ByteBuffer get(FileKey key) throws IOException {
+        if(key.size > mapLimit) {
+            return null;
+        }
+
+        synchronized (this) {
+            ByteBuffer cached = entries.get(key);
+            if(cached != null) {
+                return cached.duplicate();
+            }
+        }
+
+        ByteBuffer content = load(key);
+        if(content == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            removeStale(key);
+            ByteBuffer raced = entries.get(key);
+            if(raced != null) {
+                return raced.duplicate();
+            }
+            while(used + key.size > budget && !entries.isEmpty()) {
+                Iterator<Map.Entry<FileKey, ByteBuffer>> it = entries.entrySet().iterator();
+                FileKey eldest = it.next().getKey();
+                it.remove();
+                used -= eldest.size;
+                log.debug("Evicted {}", eldest.path);
+            }
+            entries.put(key, content);
+            used += key.size;
+        }
+
+        return content.duplicate();
+    }
+
+    /**
+     * @return a buffer with length bytes of a cached buffer starting at position
+     */
+    public static ByteBuffer slice(ByteBuffer buffer, long position, long length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit((int)(position + length));
+        slice.position((int)position);
+        return slice.slice();
+    }
+
+    public synchronized void invalidate(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        for(Iterator<FileKey> it = entries.keySet().iterator(); it.hasNext(); ) {
+            FileKey key = it.next();
+            if(key.path.equals(path)) {
+                it.remove();
+                used -= key.size;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        used = 0;
+    }
+
+    private void removeStale(FileKey current) {
+        for(Iterator<FileKey> it = entries.keySet().iterator(); it.hasNext(); ) {
+            FileKey key = it.next();
+            if(key.samePath(current) && !key.equals(current)) {
+                it.remove();
+                used -= key.size;
+            }
+        }
+    }
+
+    private ByteBuffer load(FileKey key) throws IOException {
+        try (FileChannel channel = FileChannel.open(key.path, StandardOpenOption.READ)) {
+            if(channel.size() != key.size) {
+                // changed while we were looking...
+                return null;
+            }
+            if(key.size <= heapLimit) {
+                ByteBuffer heap = ByteBuffer.allocate((int)key.size);
+                while(heap.hasRemaining()) {
+                    if(channel.read(heap, heap.position()) < 0) {
+                        return null;
+                    }
+                }
+                heap.flip();
+                log.debug("Cached {} on heap", key.path);
+                return heap.asReadOnlyBuffer();
+            }
+            log.debug("Mapped {}", key.path);
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, key.size);
+        }
+    }
+}
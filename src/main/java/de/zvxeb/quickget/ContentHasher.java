@@ -0,0 +1,184 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes SHA-256 tree hashes of files on a background pool.
+ *
+ * The file is split into {@link #CHUNK_SIZE} chunks which are hashed in parallel;
+ * the result is the SHA-256 of all chunk digests in order. Results are remembered
+ * per {@link FileKey}, so a changed file is hashed again.
+ */
+public class ContentHasher {
+    private static final Logger log = LoggerFactory.getLogger(ContentHasher.class);
+
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RESULTS = 1024;
+
+    private final ExecutorService pool;
+    private final Map<FileKey, CompletableFuture<String>> results = new ConcurrentHashMap<>();
+
+    public ContentHasher(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "QuickGet Hasher #" + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * @return the hex encoded tree hash if it is already known, otherwise null (and hashing is started)
+     */
+    public String getIfDone(FileKey key) {
+        CompletableFuture<String> result = hash(key);
+        return result.isDone() && !result.isCompletedExceptionally() ? result.join() : null;
+    }
+
+    public CompletableFuture<String> hash(File file) throws IOException {
+        FileKey key = FileKey.of(file);
+        if(key == null) {
+            return CompletableFuture.failedFuture(new IOException("Not a regular file: " + file));
+        }
+        return hash(key);
+    }
+
+    public CompletableFuture<String> hash(FileKey key) {
+        CompletableFuture<String> existing = results.get(key);
+        if(existing != null) {
+            return existing;
+        }
+        if(results.size() >= MAX_RESULTS) {
+            results.clear();
+        }
+        results.keySet().removeIf(k -> k.samePath(key) && !k.equals(key));
+        CompletableFuture<String> started = new CompletableFuture<>();
+        existing = results.putIfAbsent(key, started);
+        if(existing != null) {
+            return existing;
+        }
+        compute(key).whenComplete((hash, error) -> {
+            if(error != null) {
+                log.debug("Could not hash {}", key, error);
+                results.remove(key, started);
+                started.completeExceptionally(error);
+            } else {
+                log.debug("Hashed {}: {}", key, hash);
+                started.complete(hash);
+            }
+        });
+        return started;
+    }
+
+    private CompletableFuture<String> compute(FileKey key) {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(key.path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        int chunks = (int)Math.max(1, (key.size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        List<CompletableFuture<byte []>> chunkHashes = new ArrayList<>(chunks);
+        for(int i=0; i<chunks; i++) {
+            long start = (long)i * CHUNK_SIZE;
+            long length = Math.min(CHUNK_SIZE, key.size - start);
+            chunkHashes.add(CompletableFuture.supplyAsync(() -> hashChunk(channel, start, length), pool));
+        }
+
+        return CompletableFuture.allOf(chunkHashes.toArray(new CompletableFuture<?>[0])).handle((v, error) -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Could not close channel", e);
+            }
+            if(error != null) {
+                throw error instanceof RuntimeException ? (RuntimeException) error : new IllegalStateException(error);
+            }
+            MessageDigest root = sha256();
+            for(CompletableFuture<byte []> chunkHash : chunkHashes) {
+                root.update(chunkHash.join());
+            }
+            return toHex(root.digest());
+        });
+    }
+
+    private static byte [] hashChunk(FileChannel channel, long start, long length) {
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long position = start;
+        long end = start + length;
+        try {
+            while(position < end) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), end - position));
+                int n = channel.read(buffer, position);
+                if(n < 0) {
+                    throw new IOException("File truncated while hashing");
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += n;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte [] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
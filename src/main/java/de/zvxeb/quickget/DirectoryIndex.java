@@ -0,0 +1,335 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import fi.iki.elonen.NanoHTTPD;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Index of all regular files below a directory, kept up to date by a {@link WatchService}.
+ *
+ * Request paths are resolved with a single hash lookup and the HTML listing is
+ * rebuilt by the watcher only when the index changes.
+ */
+public class DirectoryIndex implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(DirectoryIndex.class);
+
+    public static class Entry {
+        public final File file;
+        public final String path;
+        public final String mimeType;
+        public final long size;
+        public final long modified;
+
+        Entry(File file, String path, long size, long modified) {
+            this.file = file;
+            this.path = path;
+            this.mimeType = NanoHTTPD.getMimeTypeForFile(file.getName());
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private final Path root;
+    // replaced as a whole by a rescan, so lookups never see a partial index
+    private volatile Map<String, Entry> entries;
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private final WatchService watchService;
+    private final Thread watcher;
+
+    private volatile byte [] listing;
+
+    public DirectoryIndex(File directory) throws IOException {
+        this.root = directory.toPath().toAbsolutePath().normalize();
+        this.watchService = root.getFileSystem().newWatchService();
+        entries = new ConcurrentHashMap<>();
+        scan(root, entries);
+        listing = renderListing();
+        watcher = new Thread(this::watch, "QuickGet Directory Watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Index for a new serve target: the current index is kept if it covers the same
+     * directory, otherwise it is closed.
+     *
+     * @return the index for file or null if file is not a directory (or could not be indexed)
+     */
+    public static DirectoryIndex replace(DirectoryIndex current, File file) {
+        if(current != null && file.isDirectory() && current.root.equals(file.toPath().toAbsolutePath().normalize())) {
+            return current;
+        }
+        DirectoryIndex next = null;
+        if(file.isDirectory()) {
+            try {
+                next = new DirectoryIndex(file);
+                log.info("Indexed {} files in {}", next.size(), file.getAbsolutePath());
+            } catch (IOException e) {
+                log.error("Could not index directory {}", file.getAbsolutePath(), e);
+            }
+        }
+        closeQuietly(current);
+        return next;
+    }
+
+    public static void closeQuietly(DirectoryIndex index) {
+        if(index != null) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                log.debug("Could not close directory index", e);
+            }
+        }
+    }
+
+    public File getRoot() {
+        return root.toFile();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param requestPath decoded request path, leading '/' is optional
+     * @return the indexed file or null
+     */
+    public Entry lookup(String requestPath) {
+        return entries.get(normalize(requestPath));
+    }
+
+    /**
+     * @param directory decoded request path of a directory, empty for all files
+     * @return the files below the directory, sorted by path
+     */
+    public List<Entry> select(String directory) {
+        String prefix = normalize(directory);
+        while(prefix.endsWith("/")) {
+            prefix = prefix.substring(0, prefix.length() - 1);
+        }
+        String below = prefix + "/";
+        List<Entry> selected = new ArrayList<>();
+        for(Map.Entry<String, Entry> e : entries.entrySet()) {
+            if(prefix.isEmpty() || e.getKey().startsWith(below)) {
+                selected.add(e.getValue());
+            }
+        }
+        selected.sort(Comparator.comparing(e -> e.path));
+        return selected;
+    }
+
+    public byte [] getListing() {
+        return listing;
+    }
+
+    static String normalize(String path) {
+        while(path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        return path.toLowerCase(Locale.ROOT);
+    }
+
+    private String relative(Path file) {
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    private void scan(Path start, Map<String, Entry> into) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                watchedDirectories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if(attrs.isRegularFile()) {
+                    add(into, file, attrs);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                log.debug("Could not index {}", file, exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void add(Map<String, Entry> into, Path file, BasicFileAttributes attrs) {
+        String path = relative(file);
+        into.put(normalize(path), new Entry(file.toFile(), path, attrs.size(), attrs.lastModifiedTime().toMillis()));
+    }
+
+    private void remove(Path path) {
+        Map<String, Entry> entries = this.entries;
+        String key = normalize(relative(path));
+        if(entries.remove(key) == null) {
+            // maybe a directory
+            String prefix = key + "/";
+            entries.keySet().removeIf(k -> k.startsWith(prefix));
+        }
+    }
+
+    private void watch() {
+        try {
+            while(true) {
+                WatchKey key = watchService.take();
+                Path dir = watchedDirectories.get(key);
+                boolean changed = false;
+                boolean rescan = dir == null;
+                for(WatchEvent<?> event : key.pollEvents()) {
+                    if(rescan) {
+                        // covered by the rescan of this batch
+                        continue;
+                    }
+                    if(event.kind() == OVERFLOW) {
+                        rescan = true;
+                        continue;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    try {
+                        changed |= update(path, event.kind());
+                    } catch (IOException | UncheckedIOException e) {
+                        // e.g. deleted while it was read, a later event brings the index up to date
+                        log.debug("Could not update index for {}", path, e);
+                    }
+                }
+                if(!key.reset()) {
+                    watchedDirectories.remove(key);
+                }
+                if(rescan) {
+                    changed |= rescan();
+                }
+                if(changed) {
+                    listing = renderListing();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Directory watcher stopped");
+        }
+    }
+
+    /**
+     * Builds a new index next to the current one and swaps it in, lookups keep using the old one meanwhile.
+     *
+     * @return false if the directory could not be scanned, the current index is kept then
+     */
+    private boolean rescan() {
+        log.debug("Index overflow, rescanning {}", root);
+        Map<String, Entry> fresh = new ConcurrentHashMap<>();
+        try {
+            scan(root, fresh);
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Could not rescan {}", root, e);
+            return false;
+        }
+        entries = fresh;
+        return true;
+    }
+
+    private boolean update(Path path, WatchEvent.Kind<?> kind) throws IOException {
+        if(kind == ENTRY_DELETE) {
+            remove(path);
+            return true;
+        }
+        BasicFileAttributes attrs;
+        try {
+            // like the initial walk, links are not followed out of the shared directory
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            remove(path);
+            return true;
+        }
+        if(attrs.isDirectory()) {
+            if(kind == ENTRY_CREATE) {
+                scan(path, entries);
+                return true;
+            }
+            return false;
+        }
+        if(attrs.isRegularFile()) {
+            add(entries, path, attrs);
+            return true;
+        }
+        // a file replaced by a link or special file must not stay listed
+        remove(path);
+        return true;
+    }
+
+    private byte [] renderListing() {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparing(e -> e.path));
+
+        StringBuilder sb = new StringBuilder(256 + sorted.size() * 128);
+        String title = escape(root.getFileName() == null ? root.toString() : root.getFileName().toString());
+        sb.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\">")
+            .append("<meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">")
+            .append("<title>").append(title).append("</title></head><body>\n")
+            .append("<h1>").append(title).append("</h1>\n<form method=\"get\" action=\"/\">\n<ul>\n");
+        for(Entry e : sorted) {
+            sb.append("<li><input type=\"checkbox\" name=\"file\" value=\"").append(escape(e.path)).append("\"> ")
+                .append("<a href=\"/").append(encodePath(e.path)).append("\">")
+                .append(escape(e.path)).append("</a> (").append(e.size).append(" bytes)</li>\n");
+        }
+        sb.append("</ul>\n<p>Download selected (or all) files as ")
+            .append("<button name=\"archive\" value=\"zip\">ZIP</button> ")
+            .append("<button name=\"archive\" value=\"tar\">TAR</button></p>\n</form>\n</body></html>\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String encodePath(String path) {
+        StringBuilder sb = new StringBuilder(path.length() + 16);
+        for(String segment : path.split("/")) {
+            if(sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(URLEncoder.encode(segment, StandardCharsets.UTF_8).replace("+", "%20"));
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        watcher.interrupt();
+    }
+}
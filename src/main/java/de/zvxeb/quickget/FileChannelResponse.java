@@ -0,0 +1,101 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes a file region with {@link FileChannel#transferTo} so the kernel can use sendfile,
+ * or with positional reads into pooled direct buffers if a buffer pool is set.
+ */
+public class FileChannelResponse extends ChannelResponse {
+    private final FileChannel channel;
+    private final long position;
+    private final boolean closeChannel;
+
+    public FileChannelResponse(IStatus status, String mimeType, FileChannel channel, long position, long length, Socket socket) {
+        this(status, mimeType, channel, position, length, socket, true);
+    }
+
+    /**
+     * @param closeChannel false if the channel is shared and closed by its owner
+     */
+    public FileChannelResponse(IStatus status, String mimeType, FileChannel channel, long position, long length, Socket socket, boolean closeChannel) {
+        super(status, mimeType, length, socket);
+        this.channel = channel;
+        this.position = position;
+        this.closeChannel = closeChannel;
+    }
+
+    @Override
+    protected void transfer(WritableByteChannel target) throws IOException {
+        if(bufferPool != null) {
+            copy(target);
+            return;
+        }
+        long pos = position;
+        long remaining = length;
+        while(remaining > 0) {
+            long n = channel.transferTo(pos, Math.min(remaining, chunkSize()), target);
+            if(n <= 0) {
+                if(pos >= channel.size()) {
+                    throw new IOException("File truncated while serving");
+                }
+                continue;
+            }
+            pos += n;
+            remaining -= n;
+            sent(n);
+        }
+    }
+
+    private void copy(WritableByteChannel target) throws IOException {
+        long pos = position;
+        long remaining = length;
+        try(BufferPool.Lease lease = bufferPool.acquire((int)Math.min(remaining, BufferPool.TRANSFER_SIZE))) {
+            ByteBuffer buffer = lease.buffer;
+            int capacity = buffer.limit();
+            while(remaining > 0) {
+                buffer.clear().limit((int)Math.min(Math.min(remaining, chunkSize()), capacity));
+                while(buffer.hasRemaining()) {
+                    if(channel.read(buffer, pos + buffer.position()) < 0) {
+                        throw new IOException("File truncated while serving");
+                    }
+                }
+                buffer.flip();
+                int n = buffer.remaining();
+                while(buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                pos += n;
+                remaining -= n;
+                sent(n);
+            }
+        }
+    }
+
+    @Override
+    protected void release() throws IOException {
+        if(closeChannel) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * Identifies a version of a file by path, modification time and size.
+ */
+public class FileKey {
+    public final Path path;
+    public final long modified;
+    public final long size;
+
+    public FileKey(Path path, long modified, long size) {
+        this.path = path;
+        this.modified = modified;
+        this.size = size;
+    }
+
+    /**
+     * @return key for the current state of the file or null if it is not a regular file
+     */
+    public static FileKey of(File file) throws IOException {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if(!Files.isRegularFile(path)) {
+            return null;
+        }
+        return new FileKey(path, Files.getLastModifiedTime(path).toMillis(), Files.size(path));
+    }
+
+    public boolean samePath(FileKey other) {
+        return path.equals(other.path);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof FileKey)) return false;
+        FileKey key = (FileKey) o;
+        return modified == key.modified && size == key.size && path.equals(key.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(path, modified, size);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%d bytes, modified %d)", path, size, modified);
+    }
+}
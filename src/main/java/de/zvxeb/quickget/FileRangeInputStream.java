@@ -0,0 +1,87 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a slice of a file using positional reads, so several slices can share one channel.
+ */
+public class FileRangeInputStream extends InputStream {
+    private final FileChannel channel;
+    private final boolean closeChannel;
+    private long position;
+    private long remaining;
+
+    public FileRangeInputStream(FileChannel channel, long start, long length, boolean closeChannel) {
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        this.position = start;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte [] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n <= 0 ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(remaining <= 0) {
+            return -1;
+        }
+        ByteBuffer bb = ByteBuffer.wrap(b, off, (int)Math.min(len, remaining));
+        int n = channel.read(bb, position);
+        if(n < 0) {
+            // file was truncated while serving
+            remaining = 0;
+            return -1;
+        }
+        position += n;
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, remaining));
+        position += skipped;
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int)Math.min(Integer.MAX_VALUE, remaining);
+    }
+
+    @Override
+    public void close() throws IOException {
+        remaining = 0;
+        if(closeChannel) {
+            channel.close();
+        }
+    }
+}
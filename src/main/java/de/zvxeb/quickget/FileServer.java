@@ -0,0 +1,119 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * HTTP server publishing a single file or a directory, see {@link ServerEngine} for the implementations.
+ *
+ * The optional services can be set before or while the server is running; null disables them.
+ */
+public interface FileServer {
+    void start() throws IOException;
+
+    void stop();
+
+    int getPort();
+
+    /**
+     * Closes the listening socket. Requests in progress are completed, but their connections
+     * are closed afterwards and idle connections are closed soon; {@link #stop()} ends the rest.
+     */
+    void stopAccepting();
+
+    /**
+     * @return number of open client connections
+     */
+    int getOpenConnections();
+
+    /**
+     * @return the responses currently being sent
+     */
+    Transfers getTransfers();
+
+    /**
+     * Sets the served content. If fileToServe is a directory, all files below it are served
+     * by their relative path and a listing is available at '/'.
+     */
+    void setFile(File fileToServe, String nameToServe, String mimeTypeToServe);
+
+    /**
+     * @return what is served, replaced as a whole by {@link #setFile(File, String, String)}
+     */
+    ServeTarget getServeTarget();
+
+    default File getFileToServe() {
+        return getServeTarget().file;
+    }
+
+    default String getNameToServe() {
+        return getServeTarget().name;
+    }
+
+    default String getMimeTypeToServe() {
+        return getServeTarget().mimeType;
+    }
+
+    /**
+     * @return the index if a directory is served, null otherwise
+     */
+    default DirectoryIndex getDirectoryIndex() {
+        return getServeTarget().index;
+    }
+
+    /**
+     * @param idleTimeoutMillis how long a connection may wait for (the rest of) a request before it is closed
+     */
+    void setIdleTimeout(long idleTimeoutMillis);
+
+    /**
+     * @param transferReaper closes stalled transfers while the server runs, null to let them wait forever
+     */
+    void setTransferReaper(TransferReaper transferReaper);
+
+    /**
+     * @param landingPage page downloading a single file with parallel ranges, null to not offer it
+     */
+    void setLandingPage(LandingPage landingPage);
+
+    /**
+     * @param contentCache cache for file content, null to always read from disk
+     */
+    void setContentCache(ContentCache contentCache);
+
+    /**
+     * @param contentHasher computes checksums in the background, null to not send checksums
+     */
+    void setContentHasher(ContentHasher contentHasher);
+
+    /**
+     * @param gzipVariants compressed variants for clients accepting gzip, null to only send content as is
+     */
+    void setGzipVariants(GzipVariants gzipVariants);
+
+    /**
+     * @param bandwidthLimiter shapes all response bodies, null for no shaping
+     */
+    void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter);
+
+    /**
+     * @param admissionControl limits concurrent transfers, null for no limit
+     */
+    void setAdmissionControl(AdmissionControl admissionControl);
+}
@@ -0,0 +1,114 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows a file that is still being written: every client reads from the start and
+ * keeps receiving appended bytes until the file did not grow for the idle time.
+ *
+ * The JDK cannot tell when the writer closes the file, so the idle time is the end of
+ * the content; it should be longer than the pauses of the producer.
+ */
+public class GrowingFile implements LiveSource {
+    public static final long DEFAULT_IDLE_SECONDS = 10;
+
+    private static final long POLL_MILLIS = 100;
+
+    private final File file;
+    private final long idleNanos;
+
+    public GrowingFile(File file, long idleMillis) {
+        this.file = file;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+        return new Follower(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private class Follower extends InputStream {
+        private final FileChannel channel;
+        private long position = 0;
+        private long lastGrowth = System.nanoTime();
+
+        Follower(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte [] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n <= 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            while(true) {
+                int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+                if(n > 0) {
+                    position += n;
+                    lastGrowth = System.nanoTime();
+                    return n;
+                }
+                if(channel.size() < position) {
+                    throw new IOException("File truncated while following " + file);
+                }
+                if(System.nanoTime() - lastGrowth >= idleNanos) {
+                    return -1;
+                }
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int)Math.max(0, Math.min(Integer.MAX_VALUE, channel.size() - position));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Produces and caches gzip compressed variants of served files.
+ *
+ * Compression works like pigz: the file is cut into blocks that are deflated in
+ * parallel (primed with the previous 32 KiB as dictionary) and concatenated with
+ * sync flushes into a single gzip member. Variants are stored in a cache directory
+ * keyed by {@link FileKey}; files that do not compress well are remembered as such
+ * and served as they are.
+ */
+public class GzipVariants {
+    private static final Logger log = LoggerFactory.getLogger(GzipVariants.class);
+
+    private static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * Files up to this size are compressed while the request waits, larger ones in the background.
+     */
+    public static final long SYNC_LIMIT = 1024 * 1024;
+    public static final long MIN_SIZE = 1024;
+
+    /**
+     * Variants larger than this fraction of the original are not worth serving.
+     */
+    private static final double MAX_RATIO = 0.9;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+        "gz", "tgz", "zip", "jar", "apk", "7z", "rar", "bz2", "xz", "zst", "lz4",
+        "png", "jpg", "jpeg", "gif", "webp", "heic", "avif",
+        "mp4", "m4v", "mkv", "webm", "mov", "avi",
+        "mp3", "m4a", "aac", "ogg", "opus", "flac",
+        "pdf", "docx", "xlsx", "pptx", "odt", "woff", "woff2"
+    ));
+
+    private static final Set<String> COMPRESSED_MIME_TYPES = new HashSet<>(Arrays.asList(
+        "application/zip", "application/gzip", "application/x-gzip", "application/x-7z-compressed",
+        "application/x-rar-compressed", "application/x-bzip2", "application/x-xz", "application/zstd",
+        "application/java-archive", "application/vnd.android.package-archive", "application/pdf"
+    ));
+
+    /**
+     * Types worth compressing, anything else (executables, disk images, ...) is sent as is
+     */
+    private static final Set<String> TEXT_EXTENSIONS = new HashSet<>(Arrays.asList(
+        "txt", "log", "csv", "tsv", "json", "ndjson", "xml", "html", "htm", "css", "js", "mjs", "md",
+        "svg", "yaml", "yml", "toml", "ini", "conf", "cfg", "properties", "sql", "sh", "bat", "ps1",
+        "py", "java", "c", "h", "cpp", "rs", "go", "ts", "tex", "rtf", "srt", "vtt", "eml", "ics", "vcf"
+    ));
+
+    private static final Set<String> TEXT_MIME_TYPES = new HashSet<>(Arrays.asList(
+        "application/json", "application/xml", "application/javascript", "application/x-javascript",
+        "application/x-sh", "application/sql", "application/rtf", "application/x-tex", "application/yaml",
+        "application/x-yaml", "application/ld+json", "application/xhtml+xml", "image/svg+xml"
+    ));
+
+    /**
+     * Compression stops if the first blocks up to this size do not shrink enough.
+     */
+    private static final long PROBE_SIZE = 1024 * 1024;
+
+    private final Path directory;
+    private final int threads;
+    private final ExecutorService pool;
+    private final ExecutorService coordinator;
+    private final Map<FileKey, CompletableFuture<File>> variants = new ConcurrentHashMap<>();
+
+    public GzipVariants(File directory, int threads) throws IOException {
+        this.directory = Files.createDirectories(directory.toPath());
+        this.threads = Math.max(1, threads);
+        AtomicInteger count = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "QuickGet Gzip #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        coordinator = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "QuickGet Gzip Writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return true for text-like content that is worth a gzip variant, by type or (for generic types) by extension
+     */
+    public static boolean isCompressible(String mimeType, String fileName) {
+        String mime = baseType(mimeType);
+        if(mime.startsWith("text/") || TEXT_MIME_TYPES.contains(mime) || mime.endsWith("+json") || mime.endsWith("+xml")) {
+            return true;
+        }
+        if(!mime.isEmpty() && !mime.equals("application/octet-stream")) {
+            return false;
+        }
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && TEXT_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return true for content that is compressed already (images, video, audio, archives)
+     */
+    public static boolean isAlreadyCompressed(String mimeType, String fileName) {
+        String mime = baseType(mimeType);
+        if(mime.startsWith("image/") && !mime.equals("image/svg+xml") || mime.startsWith("video/") || mime.startsWith("audio/")) {
+            return true;
+        }
+        if(COMPRESSED_MIME_TYPES.contains(mime)) {
+            return true;
+        }
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static String baseType(String mimeType) {
+        String mime = mimeType == null ? "" : mimeType.toLowerCase(Locale.ROOT);
+        int semicolon = mime.indexOf(';');
+        return semicolon >= 0 ? mime.substring(0, semicolon).trim() : mime;
+    }
+
+    /**
+     * @return the compressed variant if it is available (small files are compressed right away),
+     * null if it is still being produced or the file does not compress well
+     */
+    public File getIfReady(FileKey key) {
+        if(key.size < MIN_SIZE) {
+            return null;
+        }
+        CompletableFuture<File> variant = variants.get(key);
+        if(variant == null) {
+            variants.entrySet().removeIf(e -> e.getKey().samePath(key) && !e.getKey().equals(key) && discard(e.getValue()));
+            CompletableFuture<File> started = new CompletableFuture<>();
+            variant = variants.putIfAbsent(key, started);
+            if(variant == null) {
+                variant = started;
+                Runnable task = () -> {
+                    try {
+                        started.complete(compress(key));
+                    } catch (IOException | RuntimeException e) {
+                        log.warn("Could not compress {}", key.path, e);
+                        variants.remove(key, started);
+                        started.completeExceptionally(e);
+                    }
+                };
+                if(key.size <= SYNC_LIMIT) {
+                    task.run();
+                } else {
+                    coordinator.execute(task);
+                }
+            }
+        }
+        if(key.size <= SYNC_LIMIT) {
+            try {
+                return variant.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+        return variant.isDone() && !variant.isCompletedExceptionally() ? variant.join() : null;
+    }
+
+    /**
+     * Like {@link #getIfReady(FileKey)} but never starts compressing, for requests that
+     * only describe the content (HEAD).
+     *
+     * @return the compressed variant if it was produced already, null otherwise
+     */
+    public File getIfDone(FileKey key) {
+        CompletableFuture<File> variant = variants.get(key);
+        return variant != null && variant.isDone() && !variant.isCompletedExceptionally() ? variant.join() : null;
+    }
+
+    private static boolean discard(CompletableFuture<File> variant) {
+        variant.thenAccept(f -> {
+            if(f != null && !f.delete()) {
+                log.debug("Could not delete {}", f);
+            }
+        });
+        return true;
+    }
+
+    private File compress(FileKey key) throws IOException {
+        long start = System.nanoTime();
+        Path target = directory.resolve(String.format("%s-%x-%x.gz", UUID.nameUUIDFromBytes(key.path.toString().getBytes(StandardCharsets.UTF_8)), key.size, key.modified));
+        Path temp = Files.createTempFile(directory, "partial", ".gz");
+        long compressed;
+        try (FileChannel in = FileChannel.open(key.path, StandardOpenOption.READ);
+             OutputStream out = Files.newOutputStream(temp)) {
+            compressed = compress(in, key.size, out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        if(compressed < 0 || compressed > key.size * MAX_RATIO) {
+            log.debug("{} does not compress well, serving as is", key.path);
+            Files.deleteIfExists(temp);
+            return null;
+        }
+
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        target.toFile().deleteOnExit();
+        log.info("Compressed {} to {} bytes ({} ms)", key.path.getFileName(), compressed, (System.nanoTime() - start) / 1000000);
+        return target.toFile();
+    }
+
+    /**
+     * Writes a gzip member for the first length bytes of the channel.
+     * At most two blocks per thread are in flight, so memory use does not depend on the file size.
+     *
+     * @return the compressed size or -1 if the first {@link #PROBE_SIZE} bytes did not compress well (output is incomplete then)
+     */
+    private long compress(FileChannel in, long length, OutputStream out) throws IOException {
+        byte [] header = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+        out.write(header);
+        long written = header.length;
+
+        CRC32 crc = new CRC32();
+        ArrayDeque<Future<byte []>> inFlight = new ArrayDeque<>();
+        ArrayDeque<Integer> inFlightLengths = new ArrayDeque<>();
+        byte [] dictionary = null;
+        long position = 0;
+        long deflatedInput = 0;
+        boolean probed = length < PROBE_SIZE * 2;
+        do {
+            int blockLength = (int)Math.min(BLOCK_SIZE, length - position);
+            byte [] block = new byte[blockLength];
+            ByteBuffer bb = ByteBuffer.wrap(block);
+            while(bb.hasRemaining()) {
+                if(in.read(bb, position + bb.position()) < 0) {
+                    throw new IOException("File truncated while compressing");
+                }
+            }
+            crc.update(block);
+            position += blockLength;
+
+            byte [] blockDictionary = dictionary;
+            boolean last = position >= length;
+            inFlight.add(pool.submit(() -> deflate(block, blockDictionary, last)));
+            inFlightLengths.add(blockLength);
+            dictionary = block.length >= DICTIONARY_SIZE ? Arrays.copyOfRange(block, block.length - DICTIONARY_SIZE, block.length) : block;
+
+            while(inFlight.size() >= threads * 2 || last && !inFlight.isEmpty()) {
+                byte [] deflated = await(inFlight.poll());
+                out.write(deflated);
+                written += deflated.length;
+                deflatedInput += inFlightLengths.poll();
+            }
+            if(!probed && deflatedInput >= PROBE_SIZE) {
+                probed = true;
+                if(written > deflatedInput * MAX_RATIO) {
+                    for(Future<byte []> future : inFlight) {
+                        future.cancel(false);
+                    }
+                    return -1;
+                }
+            }
+        } while(position < length);
+
+        ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt((int)crc.getValue());
+        trailer.putInt((int)length);
+        out.write(trailer.array());
+        return written + 8;
+    }
+
+    private static byte [] await(Future<byte []> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    private static byte [] deflate(byte [] block, byte [] dictionary, boolean last) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if(dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(block);
+            if(last) {
+                deflater.finish();
+            }
+            byte [] buffer = new byte[block.length + block.length / 8 + 64];
+            int size = 0;
+            while(true) {
+                int n = deflater.deflate(buffer, size, buffer.length - size, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                size += n;
+                if(last ? deflater.finished() : size < buffer.length) {
+                    break;
+                }
+                if(size == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            return Arrays.copyOf(buffer, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public void shutdown() {
+        coordinator.shutdownNow();
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+/**
+ * Evaluation of conditional and content negotiation request headers, shared by the server engines.
+ *
+ * All header values may be null if the request does not carry the header.
+ */
+public final class HttpConditions {
+    private HttpConditions() {
+    }
+
+    public static String etag(FileKey key) {
+        return String.format("\"%x-%x\"", key.size, key.modified);
+    }
+
+    /**
+     * Entity tag of the gzip variant, it must differ from the identity encoding.
+     */
+    public static String gzipEtag(FileKey key) {
+        return String.format("\"%x-%x-gz\"", key.size, key.modified);
+    }
+
+    /**
+     * Entity tag of a downscaled image, see {@link ImageVariants}.
+     */
+    public static String imageEtag(FileKey key, int width, int height) {
+        return String.format("\"%x-%x-%dx%d\"", key.size, key.modified, width, height);
+    }
+
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if(acceptEncoding == null) {
+            return false;
+        }
+        for(String coding : acceptEncoding.split(",")) {
+            String [] parts = coding.split(";");
+            String name = parts[0].trim();
+            if(name.equalsIgnoreCase("gzip") || name.equals("*")) {
+                for(int i=1; i<parts.length; i++) {
+                    String param = parts[i].trim();
+                    if(param.startsWith("q=")) {
+                        try {
+                            return Double.parseDouble(param.substring(2)) > 0;
+                        } catch (NumberFormatException nfe) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static boolean isNotModified(String ifNoneMatch, String ifModifiedSince, String etag, FileKey key) {
+        if(ifNoneMatch != null) {
+            return matchesEtag(ifNoneMatch, etag);
+        }
+        if(ifModifiedSince != null) {
+            long since = Util.parseHttpDate(ifModifiedSince);
+            // HTTP dates have a resolution of seconds
+            return since >= 0 && key.modified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates If-Range: a range request for a changed file gets the full content.
+     */
+    public static boolean isRangeApplicable(String ifRange, String etag, FileKey key) {
+        if(ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if(ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        long date = Util.parseHttpDate(ifRange);
+        return date >= 0 && key.modified / 1000 == date / 1000;
+    }
+
+    public static boolean matchesEtag(String header, String etag) {
+        for(String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if(candidate.equals("*")) {
+                return true;
+            }
+            if(candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if(candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
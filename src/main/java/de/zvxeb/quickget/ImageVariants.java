@@ -0,0 +1,326 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downscaled variants of served images for requests with w and/or h parameters.
+ *
+ * Images are rendered on a small pool (decoding a camera image takes a lot of memory, so
+ * only a few run at the same time) and kept in a memory budgeted LRU cache keyed by
+ * {@link FileKey} and the requested size. Concurrent requests for the same variant wait
+ * for the same rendering.
+ */
+public class ImageVariants {
+    private static final Logger log = LoggerFactory.getLogger(ImageVariants.class);
+
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+    public static final int MAX_DIMENSION = 4096;
+
+    private static final float JPEG_QUALITY = 0.85f;
+
+    private static final Set<String> SCALABLE_MIME_TYPES = new HashSet<>(Arrays.asList(
+        "image/jpeg", "image/jpg", "image/png", "image/gif", "image/bmp"
+    ));
+
+    public static class Variant {
+        public final byte [] data;
+        public final String mimeType;
+        public final int width;
+        public final int height;
+
+        Variant(byte [] data, String mimeType, int width, int height) {
+            this.data = data;
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * @return true if the image is not larger than requested and the original is served instead
+         */
+        public boolean isOriginal() {
+            return this == ORIGINAL;
+        }
+    }
+
+    private static class Key {
+        final FileKey file;
+        final int width;
+        final int height;
+
+        Key(FileKey file, int width, int height) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) return true;
+            if(!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return width == key.width && height == key.height && file.equals(key.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, width, height);
+        }
+    }
+
+    // marks images that are not larger than the requested size
+    private static final Variant ORIGINAL = new Variant(new byte[0], null, 0, 0);
+
+    private final long budget;
+    private final ExecutorService pool;
+    private final Map<Key, CompletableFuture<Variant>> rendering = new ConcurrentHashMap<>();
+
+    private long used = 0;
+    private final LinkedHashMap<Key, Variant> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    public ImageVariants(long budget, int threads) {
+        this.budget = Math.max(0, budget);
+        AtomicInteger count = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "QuickGet Image #" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // no temporary files while decoding
+        ImageIO.setUseCache(false);
+    }
+
+    public static boolean isScalable(String mimeType) {
+        return mimeType != null && SCALABLE_MIME_TYPES.contains(mimeType.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return the requested dimension, clamped to {@link #MAX_DIMENSION}, 0 if the parameter is missing or invalid
+     */
+    public static int dimension(String parameter) {
+        if(parameter == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Math.min(MAX_DIMENSION, Integer.parseInt(parameter.trim())));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * @return the type a variant of an image of the given type is encoded as
+     */
+    public static String variantMimeType(String mimeType) {
+        String mime = mimeType == null ? "" : mimeType.toLowerCase(Locale.ROOT);
+        return mime.equals("image/jpeg") || mime.equals("image/jpg") ? "image/jpeg" : "image/png";
+    }
+
+    /**
+     * Like {@link #get(FileKey, int, int)} but never renders, for requests that only
+     * describe the content (HEAD).
+     *
+     * @return the cached variant (see {@link Variant#isOriginal()}), null if it was not rendered yet
+     */
+    public Variant getIfDone(FileKey key, int width, int height) {
+        return cached(new Key(key, width, height));
+    }
+
+    /**
+     * Returns the image scaled to fit into width x height (0 for no limit), keeping its aspect ratio.
+     * Waits while the variant is rendered.
+     *
+     * @return the variant or null if the image is not larger than requested (serve the original)
+     */
+    public Variant get(FileKey key, int width, int height) throws IOException {
+        Key variantKey = new Key(key, width, height);
+        Variant cached = cached(variantKey);
+        if(cached == null) {
+            CompletableFuture<Variant> started = new CompletableFuture<>();
+            CompletableFuture<Variant> future = rendering.putIfAbsent(variantKey, started);
+            if(future == null) {
+                future = started;
+                pool.execute(() -> {
+                    try {
+                        Variant variant = render(key, width, height);
+                        store(variantKey, variant);
+                        started.complete(variant);
+                    } catch (IOException | RuntimeException | Error e) {
+                        started.completeExceptionally(e);
+                    } finally {
+                        rendering.remove(variantKey);
+                    }
+                });
+            }
+            try {
+                cached = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while rendering " + key.path);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("Could not render " + key.path, e.getCause());
+            }
+        }
+        return cached == ORIGINAL ? null : cached;
+    }
+
+    private synchronized Variant cached(Key key) {
+        return cache.get(key);
+    }
+
+    private synchronized void store(Key key, Variant variant) {
+        long size = variant.data.length;
+        if(size > budget) {
+            return;
+        }
+        // variants of older versions of the file are useless now
+        cache.entrySet().removeIf(e -> {
+            if(e.getKey().file.samePath(key.file) && !e.getKey().file.equals(key.file)) {
+                used -= e.getValue().data.length;
+                return true;
+            }
+            return false;
+        });
+        Variant previous = cache.put(key, variant);
+        used += size - (previous == null ? 0 : previous.data.length);
+        Iterator<Variant> eldest = cache.values().iterator();
+        while(used > budget && eldest.hasNext()) {
+            used -= eldest.next().data.length;
+            eldest.remove();
+        }
+    }
+
+    private static Variant render(FileKey key, int width, int height) throws IOException {
+        long start = System.nanoTime();
+        try(ImageInputStream in = ImageIO.createImageInputStream(key.path.toFile())) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if(readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image " + key.path);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                double scale = Math.min(
+                    width > 0 ? (double) width / sourceWidth : Double.MAX_VALUE,
+                    height > 0 ? (double) height / sourceHeight : Double.MAX_VALUE
+                );
+                if(scale >= 1) {
+                    return ORIGINAL;
+                }
+                int targetWidth = Math.max(1, (int)Math.round(sourceWidth * scale));
+                int targetHeight = Math.max(1, (int)Math.round(sourceHeight * scale));
+
+                // decoding every n-th pixel keeps memory and time down, at least twice the target is kept for quality
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, (int)(1 / (scale * 2)));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage image = reader.read(0, param);
+
+                boolean jpeg = reader.getFormatName().toLowerCase(Locale.ROOT).startsWith("jp");
+                BufferedImage scaled = scale(image, targetWidth, targetHeight, jpeg ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+                byte [] data = jpeg ? encodeJpeg(scaled) : encode(scaled, "png");
+                log.debug("Rendered {}x{} variant of {} in {} ms ({} bytes)", targetWidth, targetHeight, key.path, (System.nanoTime() - start) / 1000000, data.length);
+                return new Variant(data, jpeg ? "image/jpeg" : "image/png", targetWidth, targetHeight);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Halves the image until it is close to the target, bilinear scaling over larger factors loses detail.
+     */
+    private static BufferedImage scale(BufferedImage image, int width, int height, int type) {
+        BufferedImage current = image;
+        do {
+            int w = Math.max(width, current.getWidth() / 2);
+            int h = Math.max(height, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(w, h, type);
+            Graphics2D g = next.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(current, 0, 0, w, h, null);
+            } finally {
+                g.dispose();
+            }
+            current = next;
+        } while(current.getWidth() != width || current.getHeight() != height);
+        return current;
+    }
+
+    private static byte [] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if(!ImageIO.write(image, format, out)) {
+            throw new IOException("No writer for " + format);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte [] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try(ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
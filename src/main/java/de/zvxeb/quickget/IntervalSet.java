@@ -0,0 +1,131 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.util.Arrays;
+
+/**
+ * Set of non-overlapping, non-adjacent half-open ranges [start, end) of longs.
+ *
+ * Ranges are kept in two sorted arrays and merged on insertion, so a file received
+ * in order (or with a handful of parallel streams) needs only a few entries.
+ * Not thread safe.
+ */
+public class IntervalSet {
+    private long [] starts = new long[4];
+    private long [] ends = new long[4];
+    private int size = 0;
+
+    /**
+     * Adds [start, end), merging it with overlapping and adjacent ranges.
+     */
+    public void add(long start, long end) {
+        if(end <= start) {
+            return;
+        }
+        // first range that could touch the new one (its end is not before start)
+        int first = firstEndingAtOrAfter(start);
+        int last = first;
+        while(last < size && starts[last] <= end) {
+            start = Math.min(start, starts[last]);
+            end = Math.max(end, ends[last]);
+            last++;
+        }
+        int removed = last - first;
+        if(removed == 0) {
+            ensureCapacity(size + 1);
+            System.arraycopy(starts, first, starts, first + 1, size - first);
+            System.arraycopy(ends, first, ends, first + 1, size - first);
+            size++;
+        } else if(removed > 1) {
+            System.arraycopy(starts, last, starts, first + 1, size - last);
+            System.arraycopy(ends, last, ends, first + 1, size - last);
+            size -= removed - 1;
+        }
+        starts[first] = start;
+        ends[first] = end;
+    }
+
+    /**
+     * @return true if [start, end) is completely contained
+     */
+    public boolean contains(long start, long end) {
+        if(end <= start) {
+            return true;
+        }
+        int i = firstEndingAtOrAfter(start + 1);
+        return i < size && starts[i] <= start && ends[i] >= end;
+    }
+
+    /**
+     * @return end of the range starting at 0 or 0 if there is none
+     */
+    public long contiguousPrefix() {
+        return size > 0 && starts[0] == 0 ? ends[0] : 0;
+    }
+
+    /**
+     * @return sum of the lengths of all ranges
+     */
+    public long total() {
+        long total = 0;
+        for(int i=0; i<size; i++) {
+            total += ends[i] - starts[i];
+        }
+        return total;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int firstEndingAtOrAfter(long position) {
+        int low = 0;
+        int high = size;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(ends[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > starts.length) {
+            starts = Arrays.copyOf(starts, capacity * 2);
+            ends = Arrays.copyOf(ends, capacity * 2);
+        }
+    }
+
+    /**
+     * @return ranges as "start-end" with inclusive ends, separated by commas
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(size * 16);
+        for(int i=0; i<size; i++) {
+            if(i > 0) {
+                sb.append(',');
+            }
+            sb.append(starts[i]).append('-').append(ends[i] - 1);
+        }
+        return sb.toString();
+    }
+}
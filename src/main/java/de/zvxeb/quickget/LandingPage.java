@@ -0,0 +1,77 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Page at {@link #PATH} that downloads the served file with several parallel Range requests.
+ *
+ * A single TCP stream from a phone often leaves most of the Wi-Fi link unused. The script
+ * fetches chunks over a few connections, verifies them with If-Range against the ETag the
+ * page was rendered with, and saves the reassembled file. The direct link stays on the page
+ * and is followed if the browser lacks support, the file is too large to assemble in memory
+ * or it changed in the meantime.
+ */
+public class LandingPage {
+    public static final String PATH = "download";
+
+    public static final int DEFAULT_PARALLEL = 4;
+    /**
+     * The file is assembled in browser memory, larger files are downloaded directly.
+     */
+    public static final long MAX_SIZE = 1024L * 1024 * 1024;
+
+    private static final String SCRIPT = Util.inlineScript("downloader.js");
+
+    private final int parallel;
+
+    public LandingPage(int parallel) {
+        this.parallel = Math.max(2, parallel);
+    }
+
+    public int getParallel() {
+        return parallel;
+    }
+
+    /**
+     * @return the page for a single file or null if the target is a directory, live content or not readable
+     */
+    public byte [] render(ServeTarget target) {
+        if(target.index != null || target.live != null || target.key == null) {
+            return null;
+        }
+        String url = "/" + URLEncoder.encode(target.name, StandardCharsets.UTF_8).replace("+", "%20");
+        String name = escape(target.name);
+        return ("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\">"
+            + "<meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">"
+            + "<title>" + name + "</title></head><body>\n<h1>" + name + "</h1>\n"
+            + "<div id=\"download\" data-url=\"" + escape(url) + "\" data-name=\"" + name + "\""
+            + " data-type=\"" + escape(target.mimeType) + "\" data-size=\"" + target.key.size + "\""
+            + " data-etag=\"" + escape(target.etag) + "\" data-parallel=\"" + parallel + "\" data-max=\"" + MAX_SIZE + "\">\n"
+            + "<p class=\"status\">" + target.key.size + " bytes</p>\n"
+            + "<p><a class=\"direct\" href=\"" + escape(url) + "\" download=\"" + name + "\">Direct download</a></p>\n"
+            + "</div>\n"
+            + SCRIPT
+            + "</body></html>\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content that is still being produced, served as chunked response of unknown length
+ * instead of a file.
+ */
+public interface LiveSource extends Closeable {
+    /**
+     * @return the file (or pipe) the content comes from, "-" for stdin
+     */
+    File getFile();
+
+    /**
+     * @return the content from its first byte, blocking while more is expected,
+     * or null if the start is no longer available to new clients
+     */
+    InputStream open() throws IOException;
+}
@@ -0,0 +1,287 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Serves a stream that can only be read once (stdin or a named pipe) to several clients.
+ *
+ * A pump thread reads the input into a ring buffer. Until the ring is full for the first
+ * time, clients can join and get the stream from its start (the replay buffer). Afterwards
+ * the oldest bytes are dropped once every client has read them, and new clients are turned
+ * away. The pump waits for the slowest client instead of dropping data, so the producer
+ * is slowed down just like when writing into a pipe.
+ */
+public class PipeSource implements LiveSource {
+    private static final Logger log = LoggerFactory.getLogger(PipeSource.class);
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int DEFAULT_REPLAY_MIB = 16;
+
+    private final File file;
+    private final Callable<InputStream> opener;
+    private final byte [][] ring;
+    private final long capacity;
+
+    private final Set<Reader> readers = new HashSet<>();
+    /**
+     * Offset of the oldest byte still in the ring
+     */
+    private long start = 0;
+    /**
+     * Number of bytes read from the input so far
+     */
+    private long end = 0;
+    private boolean finished = false;
+    private IOException failure = null;
+    private boolean closed = false;
+    private InputStream input;
+    private Thread pump;
+
+    /**
+     * @param opener opens the input on the pump thread (opening a named pipe blocks until a writer opens it)
+     * @param replayBytes how much of the start to keep for clients joining later, at least one chunk is used
+     */
+    public PipeSource(File file, Callable<InputStream> opener, long replayBytes) {
+        this.file = file;
+        this.opener = opener;
+        int chunks = (int)Math.max(1, Math.min(Integer.MAX_VALUE, (replayBytes + CHUNK_SIZE - 1) / CHUNK_SIZE));
+        this.ring = new byte[chunks][];
+        this.capacity = (long)chunks * CHUNK_SIZE;
+    }
+
+    public static PipeSource stdin(long replayBytes) {
+        return new PipeSource(new File("-"), () -> System.in, replayBytes);
+    }
+
+    public static PipeSource pipe(File pipe, long replayBytes) {
+        return new PipeSource(pipe, () -> new FileInputStream(pipe), replayBytes);
+    }
+
+    /**
+     * @return true if the file is neither a regular file nor a directory (a named pipe or device)
+     */
+    public static boolean isPipe(File file) {
+        return file.exists() && !file.isFile() && !file.isDirectory();
+    }
+
+    /**
+     * Starts reading the input, a source can only be started once.
+     */
+    public synchronized PipeSource start() {
+        if(pump == null && !closed) {
+            pump = new Thread(this::pump, "QuickGet Pipe " + file.getName());
+            pump.setDaemon(true);
+            pump.start();
+        }
+        return this;
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return bytes read from the input so far
+     */
+    public synchronized long getReceived() {
+        return end;
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public synchronized InputStream open() {
+        if(start > 0 || closed) {
+            return null;
+        }
+        Reader reader = new Reader();
+        readers.add(reader);
+        return reader;
+    }
+
+    @Override
+    public void close() {
+        InputStream in;
+        synchronized (this) {
+            closed = true;
+            in = input;
+            notifyAll();
+        }
+        if(in != null && in != System.in) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                log.debug("Could not close {}", file, e);
+            }
+        }
+    }
+
+    private void pump() {
+        try {
+            InputStream in = opener.call();
+            synchronized (this) {
+                input = in;
+                if(closed) {
+                    return;
+                }
+            }
+            log.info("Reading {}", file);
+            while(true) {
+                byte [] chunk;
+                int offset;
+                int length;
+                synchronized (this) {
+                    long free;
+                    while((free = capacity - (end - lowWater())) <= 0 && !closed) {
+                        wait();
+                    }
+                    if(closed) {
+                        return;
+                    }
+                    int index = (int)((end / CHUNK_SIZE) % ring.length);
+                    if(ring[index] == null) {
+                        ring[index] = new byte[CHUNK_SIZE];
+                    }
+                    chunk = ring[index];
+                    offset = (int)(end % CHUNK_SIZE);
+                    length = (int)Math.min(CHUNK_SIZE - offset, free);
+                    // the region is about to be overwritten
+                    start = Math.max(start, end + length - capacity);
+                }
+                // no reader needs the region, so it is filled without holding the lock
+                int n = in.read(chunk, offset, length);
+                synchronized (this) {
+                    if(n < 0) {
+                        finished = true;
+                        log.info("End of {} after {} bytes", file, end);
+                        return;
+                    }
+                    end += n;
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(new IOException("Interrupted"));
+        } catch (IOException e) {
+            log.error("Error reading {}", file, e);
+            fail(e);
+        } catch (Exception e) {
+            log.error("Could not open {}", file, e);
+            fail(new IOException(e));
+        } finally {
+            synchronized (this) {
+                finished = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void fail(IOException e) {
+        failure = e;
+    }
+
+    /**
+     * @return offset below which no client needs the data anymore
+     */
+    private long lowWater() {
+        if(readers.isEmpty()) {
+            // keep the start for the first clients, later nobody can join anyway
+            return start == 0 ? 0 : end;
+        }
+        long low = end;
+        for(Reader reader : readers) {
+            low = Math.min(low, reader.position);
+        }
+        return low;
+    }
+
+    private class Reader extends InputStream {
+        private long position = 0;
+        private boolean done = false;
+
+        @Override
+        public int read() throws IOException {
+            byte [] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n <= 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            synchronized (PipeSource.this) {
+                try {
+                    while(position == end && !finished && !closed && !done) {
+                        PipeSource.this.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+                if(done || closed) {
+                    return -1;
+                }
+                if(position == end) {
+                    if(failure != null) {
+                        throw failure;
+                    }
+                    return -1;
+                }
+                byte [] chunk = ring[(int)((position / CHUNK_SIZE) % ring.length)];
+                int offset = (int)(position % CHUNK_SIZE);
+                int n = (int)Math.min(Math.min(len, end - position), CHUNK_SIZE - offset);
+                System.arraycopy(chunk, offset, b, off, n);
+                position += n;
+                PipeSource.this.notifyAll();
+                return n;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized (PipeSource.this) {
+                return (int)Math.min(Integer.MAX_VALUE, end - position);
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (PipeSource.this) {
+                done = true;
+                readers.remove(this);
+                PipeSource.this.notifyAll();
+            }
+        }
+    }
+}
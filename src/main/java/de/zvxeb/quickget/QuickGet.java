@@ -27,19 +27,26 @@ import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.awt.geom.AffineTransform;
 import java.awt.image.*;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 public class QuickGet implements Runnable {
@@ -51,6 +58,14 @@ public class QuickGet implements Runnable {
     static final String MIME_JPG = "image/jpg";
     static final String MIME_PNG = "image/png";
 
+    // open shares, only used on the event dispatch thread
+    private static final List<QuickGet> shares = new ArrayList<>();
+
+    final SharedServices services;
+    // the first share is set up from the settings, further ones start empty
+    final boolean first;
+    final String initialPort;
+
     JFrame frame;
 
     JButton serverButton;
@@ -60,9 +75,12 @@ public class QuickGet implements Runnable {
 
     JTextField textField_ExternalUrl;
     JTextField textField_ServerPort;
+    JTextField textField_MaxRate;
+    JTextField textField_ClientRate;
 
     JFileChooser fileChooser_Input;
     File selectedFile = null;
+    LiveSource liveSource = null;
     JLabel label_InputFile;
     JTextField textField_InputFileName;
     JComboBox<String> comboxBox_InputFileMime;
@@ -70,8 +88,29 @@ public class QuickGet implements Runnable {
 
     String codeUri = "";
     ImageScaler codeScaler;
-
-    ServerThread serverThread = null;
+    String uploadCodeUri = "";
+    ImageScaler uploadCodeScaler;
+
+    FileServer server = null;
+    long drainTimeoutMillis = TimeUnit.SECONDS.toMillis(parseLong(getSetting("drainTimeout", "QG_DRAIN_TIMEOUT", ""), ServerDrain.DEFAULT_TIMEOUT_SECONDS));
+    long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(parseLong(getSetting("idleTimeout", "QG_IDLE_TIMEOUT", ""), TimeUnit.MILLISECONDS.toSeconds(SelectorServer.DEFAULT_IDLE_TIMEOUT_MILLIS)));
+    long replayBytes = parseLong(getSetting("replayBuffer", "QG_REPLAY_BUFFER", ""), PipeSource.DEFAULT_REPLAY_MIB) * 1024 * 1024;
+    boolean followFiles = Boolean.parseBoolean(getSetting("follow", "QG_FOLLOW", "false"));
+    long followIdleMillis = TimeUnit.SECONDS.toMillis(parseLong(getSetting("followIdle", "QG_FOLLOW_IDLE", ""), GrowingFile.DEFAULT_IDLE_SECONDS));
+    WatchFolder watchFolder = null;
+    // start was requested before the watch folder delivered a file
+    boolean startOnSelect = false;
+    boolean selecting = false;
+
+    /**
+     * @param first set the share up from the settings (file, name, watch folder, start)
+     * @param initialPort port shown before the server is started
+     */
+    public QuickGet(SharedServices services, boolean first, String initialPort) {
+        this.services = services;
+        this.first = first;
+        this.initialPort = initialPort;
+    }
 
     public static short i8u(byte b) {
         return (short)(((short)b)&0xff);
@@ -95,6 +134,13 @@ public class QuickGet implements Runnable {
         frame = new JFrame("QuickGet", MouseInfo.getPointerInfo().getDevice().getDefaultConfiguration());
         frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         frame.setLocationByPlatform(true);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                closeShare();
+            }
+        });
+        shares.add(this);
 
         createUI();
 
@@ -119,6 +165,11 @@ public class QuickGet implements Runnable {
         frame.setSize(new Dimension(400, 400));
         frame.setVisible(true);
 
+        if(!first) {
+            addLog("Ready...");
+            return;
+        }
+
         String file = getSetting("file", "QG_FILE", "");
         if(!emptyString(file)) {
             selectFile(new File(file.trim()));
@@ -130,13 +181,84 @@ public class QuickGet implements Runnable {
             updateServer();
         }
 
+        String watch = getSetting("watch", "QG_WATCH", "");
+        if(!emptyString(watch)) {
+            watchFolder(new File(watch.trim()));
+        }
+
         if(Boolean.parseBoolean(getSetting("start", "QG_START", "false"))) {
-            startServer();
+            if(selectedFile == null && watchFolder != null) {
+                startOnSelect = true;
+            } else {
+                startServer();
+            }
         }
 
         addLog("Ready...");
     }
 
+    /**
+     * Opens another share with its own window, port and content, using the same services.
+     */
+    private void openShare() {
+        int port = 0;
+        for(QuickGet share : shares) {
+            port = Math.max(port, parsePort(share.textField_ServerPort.getText()));
+            if(share.server != null) {
+                port = Math.max(port, share.server.getPort());
+            }
+        }
+        String nextPort = port > 0 && port < 65535 ? Integer.toString(port + 1) : initialPort;
+        new QuickGet(services, false, nextPort).run();
+    }
+
+    /**
+     * Stops what only this share uses once its window is closed.
+     */
+    private void closeShare() {
+        shares.remove(this);
+        if(server != null) {
+            server.stop();
+            server = null;
+        }
+        if(watchFolder != null) {
+            closeQuietly(watchFolder);
+            watchFolder = null;
+        }
+        if(liveSource != null && !services.isStdinSource(liveSource)) {
+            closeQuietly(liveSource);
+        }
+        liveSource = null;
+    }
+
+    /**
+     * Adds a message to the log of every open share.
+     */
+    private static void logShares(String message) {
+        for(QuickGet share : shares) {
+            share.addLog(message);
+        }
+    }
+
+    /**
+     * Selects every new file completed in the directory.
+     */
+    private void watchFolder(File directory) {
+        long settleMillis = parseLong(getSetting("watchSettle", "QG_WATCH_SETTLE", ""), WatchFolder.DEFAULT_SETTLE_MILLIS);
+        try {
+            watchFolder = new WatchFolder(directory, settleMillis, file -> SwingUtilities.invokeLater(() -> {
+                selectFile(file);
+                if(startOnSelect) {
+                    startOnSelect = false;
+                    startServer();
+                }
+            }));
+            addLog(String.format("Watching %s for new files", directory.getAbsolutePath()));
+        } catch (IOException e) {
+            addLogError(String.format("Could not watch %s: %s", directory.getAbsolutePath(), e.getMessage()));
+        }
+    }
+
     public static boolean emptyString(String s) {
         if(s==null) return true;
         if(s.trim().length()==0) return true;
@@ -157,16 +279,63 @@ public class QuickGet implements Runnable {
         return defaultSetting;
     }
 
+    public static int parseInt(String s, int defaultValue) {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
+    public static long parseLong(String s, long defaultValue) {
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
+    private FileServer createServer(int port) {
+        ServerEngine engine = ServerEngine.fromSetting(getSetting("engine", "QG_ENGINE", ServerEngine.NANOHTTPD.name()));
+        FileServer created = engine.create(port, selectedFile, textField_InputFileName.getText(), comboxBox_InputFileMime.getSelectedItem().toString());
+        if(liveSource != null && !(created instanceof ServerThread)) {
+            addLogError(String.format("Streaming sources are not supported by the %s engine", engine.name().toLowerCase()));
+        }
+        if(created instanceof ServerThread) {
+            ServerThread serverThread = (ServerThread) created;
+            if(liveSource != null) {
+                serverThread.setLiveSource(liveSource, textField_InputFileName.getText(), comboxBox_InputFileMime.getSelectedItem().toString());
+            }
+            serverThread.setTransferMode(TransferMode.fromSetting(getSetting("transfer", "QG_TRANSFER", TransferMode.STREAM.name())));
+            serverThread.setAsyncRunner(new WorkerAsyncRunner(services.workerExecutor));
+            serverThread.setUploadReceiver(services.uploadReceiver);
+            serverThread.setSharedReads(services.sharedReads);
+            serverThread.setBufferPool(services.bufferPool);
+            serverThread.setImageVariants(services.imageVariants);
+        } else if(services.uploadReceiver != null) {
+            addLogError(String.format("Uploads are not supported by the %s engine", engine.name().toLowerCase()));
+        }
+        created.setIdleTimeout(idleTimeoutMillis);
+        created.setTransferReaper(services.transferReaper);
+        created.setLandingPage(services.landingPage);
+        created.setContentCache(services.contentCache);
+        created.setContentHasher(services.contentHasher);
+        created.setGzipVariants(services.gzipVariants);
+        created.setBandwidthLimiter(services.bandwidthLimiter);
+        created.setAdmissionControl(services.admissionControl);
+        return created;
+    }
+
     private void startServer() {
         int port = parsePort(textField_ServerPort.getText());
         if(selectedFile != null) {
             if(port > 1) {
-                serverThread = new ServerThread(port, selectedFile, textField_InputFileName.getText(), comboxBox_InputFileMime.getSelectedItem().toString());
+                server = createServer(port);
                 try {
                     addLog("Starting server...");
                     updateServer(); // for log
                     serverButton.setText("Stop");
-                    serverThread.start();
+                    server.start();
                     evaluateCode();
                 } catch (IOException ioException) {
                     log.error("Error", ioException);
@@ -177,6 +346,59 @@ public class QuickGet implements Runnable {
         }
     }
 
+    /**
+     * Moves a running server to the port from the settings: a server on the new port takes
+     * new connections, the old one finishes its transfers and stops when idle (or after the drain timeout).
+     */
+    private void changePort() {
+        int port = parsePort(textField_ServerPort.getText());
+        if(server == null || port == server.getPort()) {
+            return;
+        }
+        if(port <= 1) {
+            addLogError(String.format("Invalid port: %s", textField_ServerPort.getText()));
+            return;
+        }
+        FileServer previous = server;
+        FileServer next = createServer(port);
+        try {
+            next.start();
+        } catch (IOException e) {
+            next.stop();
+            addLogError(String.format("Could not listen on port %d, staying on %d: %s", port, previous.getPort(), e.getMessage()));
+            return;
+        }
+        server = next;
+        addLog(String.format("Listening on port %d, draining port %d", port, previous.getPort()));
+        ServerDrain.start(previous, drainTimeoutMillis, message -> SwingUtilities.invokeLater(() -> addLog(message)));
+
+        // an explicit port in the external URL follows the server
+        try {
+            URI uri = new URI(textField_ExternalUrl.getText());
+            if(uri.getPort() == previous.getPort()) {
+                textField_ExternalUrl.setText(new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), port, uri.getPath(), uri.getQuery(), uri.getFragment()).toString());
+            }
+        } catch (URISyntaxException e) {
+            log.debug("Not updating external URL", e);
+        }
+        evaluateCode();
+    }
+
+    /**
+     * Stops the server gracefully: no new connections are accepted, running transfers
+     * may finish until the drain timeout is over.
+     */
+    private void drainServer() {
+        if(server == null) {
+            return;
+        }
+        FileServer draining = server;
+        server = null;
+        serverButton.setText("Start");
+        addLog(String.format("Draining server on port %d, %d transfers running...", draining.getPort(), draining.getTransfers().size()));
+        ServerDrain.start(draining, drainTimeoutMillis, message -> SwingUtilities.invokeLater(() -> addLog(message)));
+    }
+
     private JComponent createServerSettings() {
         String serverUrl = getSetting("url", "QG_URL", "http://localhost");
 
@@ -212,11 +434,11 @@ public class QuickGet implements Runnable {
         serverSettings.add(serverButton = new JButton(new AbstractAction("Start") {
             @Override
             public void actionPerformed(ActionEvent e) {
-                if(serverThread != null) {
+                if(server != null) {
                     addLog("Stopping server...");
                     serverButton.setText("Start");
-                    serverThread.stop();
-                    serverThread = null;
+                    server.stop();
+                    server = null;
                     return;
                 }
                 ((JButton)e.getSource()).setText("Stop");
@@ -228,23 +450,123 @@ public class QuickGet implements Runnable {
         gbc.weightx = 0;
         serverSettings.add(new JLabel("Port"), gbc);
 
-        String port = getSetting("port", "QG_PORT", "80");
-        textField_ServerPort = new JTextField(port, 5);
+        textField_ServerPort = new JTextField(initialPort, 5);
+        textField_ServerPort.addActionListener(e -> changePort());
         gbc.gridx++;
         gbc.weightx = 0.1;
         gbc.anchor = GridBagConstraints.EAST;
         gbc.fill = GridBagConstraints.HORIZONTAL;
         serverSettings.add(textField_ServerPort, gbc);
 
+        gbc.gridx++;
+        gbc.weightx = 0;
+        gbc.anchor = GridBagConstraints.WEST;
+        gbc.fill = GridBagConstraints.NONE;
+        JButton drainButton = new JButton(new AbstractAction("Drain") {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                drainServer();
+            }
+        });
+        drainButton.setToolTipText("Stop accepting connections and stop once running transfers are done");
+        serverSettings.add(drainButton, gbc);
+
+        gbc.gridx++;
+        JButton shareButton = new JButton(new AbstractAction("New share") {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                openShare();
+            }
+        });
+        shareButton.setToolTipText("Open another window to share something else on another port");
+        serverSettings.add(shareButton, gbc);
+
         // Textfield for port will not scale nicely without this...
         gbc.gridx++;
         gbc.weightx = 1;
         gbc.fill = GridBagConstraints.HORIZONTAL;
         serverSettings.add(new JPanel(), gbc);
 
+        gbc.gridx = 0;
+        gbc.gridy++;
+        gbc.weightx = 0;
+        gbc.fill = GridBagConstraints.NONE;
+        gbc.anchor = GridBagConstraints.EAST;
+        serverSettings.add(new JLabel("KiB/s"), gbc);
+
+        gbc.gridx++;
+        gbc.anchor = GridBagConstraints.WEST;
+        serverSettings.add(new JLabel("Total"), gbc);
+
+        gbc.gridx++;
+        gbc.weightx = 0.1;
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        serverSettings.add(textField_MaxRate = new JTextField(formatRate(services.bandwidthLimiter.getGlobalRate()), 5), gbc);
+
+        gbc.gridx++;
+        gbc.weightx = 0;
+        gbc.fill = GridBagConstraints.NONE;
+        serverSettings.add(new JLabel("Client"), gbc);
+
+        gbc.gridx++;
+        gbc.weightx = 0.1;
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        serverSettings.add(textField_ClientRate = new JTextField(formatRate(services.bandwidthLimiter.getClientRate()), 5), gbc);
+
+        textField_MaxRate.setToolTipText("Bandwidth limit for all clients, 0 for unlimited");
+        textField_ClientRate.setToolTipText("Bandwidth limit for each client, 0 for unlimited");
+        DocumentListener rateListener = new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                updateRates();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                updateRates();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                updateRates();
+            }
+        };
+        textField_MaxRate.getDocument().addDocumentListener(rateListener);
+        textField_ClientRate.getDocument().addDocumentListener(rateListener);
+
         return serverSettings;
     }
 
+    private static String formatRate(long bytesPerSecond) {
+        return Long.toString(bytesPerSecond / 1024);
+    }
+
+    /**
+     * @return bytes per second, 0 for empty input (unlimited), -1 if invalid
+     */
+    private static long parseRate(String kibPerSecond) {
+        if(emptyString(kibPerSecond)) {
+            return 0;
+        }
+        try {
+            long rate = Long.parseLong(kibPerSecond.trim());
+            return rate < 0 ? -1 : rate * 1024;
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    private void updateRates() {
+        long maxRate = parseRate(textField_MaxRate.getText());
+        long clientRate = parseRate(textField_ClientRate.getText());
+        if(maxRate >= 0) {
+            services.bandwidthLimiter.setGlobalRate(maxRate);
+        }
+        if(clientRate >= 0) {
+            services.bandwidthLimiter.setClientRate(clientRate);
+        }
+    }
+
     private void setStatus(String message) {
         textField_Status.setForeground(frame.getForeground());
         textField_Status.setText(message);
@@ -270,18 +592,62 @@ public class QuickGet implements Runnable {
     private void selectFile(File f) {
         selectedFile = f;
         if(f!=null) {
-            addLog(String.format("Selected %s", selectedFile.getAbsolutePath()));
+            LiveSource previous = liveSource;
+            liveSource = liveSourceFor(f);
+            if(previous != null && previous != liveSource && !services.isStdinSource(previous)) {
+                closeQuietly(previous);
+            }
+            boolean stdin = isStdin(f);
+            addLog(String.format("Selected %s", stdin ? "stdin" : selectedFile.getAbsolutePath()));
             label_InputFile.setText(selectedFile.getName());
             label_InputFile.setToolTipText(selectedFile.getAbsolutePath());
-            textField_InputFileName.setText(selectedFile.getName());
+            // directories are served with a listing at the root, the server is updated once below
+            selecting = true;
+            try {
+                textField_InputFileName.setText(selectedFile.isDirectory() ? "" : stdin ? "stdin" : selectedFile.getName());
+            } finally {
+                selecting = false;
+            }
         }
         updateServer();
     }
 
+    private static boolean isStdin(File f) {
+        return "-".equals(f.getPath());
+    }
+
+    /**
+     * @return a source for stdin ("-"), named pipes and (if following is enabled) regular files, null to serve the file as is
+     */
+    private LiveSource liveSourceFor(File f) {
+        if(isStdin(f)) {
+            return services.stdinSource(replayBytes);
+        }
+        if(PipeSource.isPipe(f)) {
+            return PipeSource.pipe(f, replayBytes).start();
+        }
+        if(followFiles && f.isFile()) {
+            return new GrowingFile(f, followIdleMillis);
+        }
+        return null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LoggerFactory.getLogger(QuickGet.class).debug("Could not close {}", closeable, e);
+        }
+    }
+
     private void updateServer() {
-        if(serverThread!=null && selectedFile != null) {
-            serverThread.setFile(selectedFile, textField_InputFileName.getText(), (String)comboxBox_InputFileMime.getSelectedItem());
-            addLog(String.format("Serving %s as %s (%s)", serverThread.fileToServe.getName(), serverThread.nameToServe, serverThread.mimeTypeToServe));
+        if(server!=null && selectedFile != null) {
+            if(liveSource != null && server instanceof ServerThread) {
+                ((ServerThread) server).setLiveSource(liveSource, textField_InputFileName.getText(), (String)comboxBox_InputFileMime.getSelectedItem());
+            } else {
+                server.setFile(selectedFile, textField_InputFileName.getText(), (String)comboxBox_InputFileMime.getSelectedItem());
+            }
+            addLog("Serving " + server.getServeTarget());
             evaluateCode();
         }
     }
@@ -304,7 +670,7 @@ public class QuickGet implements Runnable {
                 if(fileChooser_Input == null) {
                     fileChooser_Input = new JFileChooser();
                     fileChooser_Input.setAcceptAllFileFilterUsed(true);
-                    fileChooser_Input.setFileSelectionMode(JFileChooser.FILES_ONLY);
+                    fileChooser_Input.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
                 }
                 if(fileChooser_Input.showOpenDialog(frame) == JFileChooser.APPROVE_OPTION) {
                     selectFile(fileChooser_Input.getSelectedFile());
@@ -348,7 +714,9 @@ public class QuickGet implements Runnable {
             }
 
             public void updateFileName() {
-                updateServer();
+                if(!selecting) {
+                    updateServer();
+                }
             }
         });
 
@@ -428,8 +796,19 @@ public class QuickGet implements Runnable {
         }
     }
 
+    private void updateUploadCode(String code) {
+        if(uploadCodeScaler != null && !uploadCodeUri.equals(code)) {
+            uploadCodeUri = code;
+            uploadCodeScaler.setImage(Util.getImage(QrCode.encodeText(code, QrCode.Ecc.LOW), null, null));
+        }
+    }
+
     private void evaluateCode() {
-        String file = textField_InputFileName.getText();
+        String file = selectedFile != null && selectedFile.isDirectory() ? "" : textField_InputFileName.getText();
+        if(services.landingPage != null && selectedFile != null && selectedFile.isFile() && liveSource == null) {
+            // the page offers the direct link as well
+            file = LandingPage.PATH;
+        }
         String url = textField_ExternalUrl.getText();
 
         if(!url.endsWith("/")) {
@@ -437,6 +816,7 @@ public class QuickGet implements Runnable {
         }
 
         updateCode(url + file);
+        updateUploadCode(url + UploadReceiver.PATH);
     }
 
     private void createUI() {
@@ -480,11 +860,23 @@ public class QuickGet implements Runnable {
         codePanel.setBorder(BorderFactory.createTitledBorder("Code"));
         codePanel.add(codeScaler = new ImageScaler(Util.getImage(QrCode.encodeText(codeUri, QrCode.Ecc.LOW), null, null)), BorderLayout.CENTER);
 
+        JComponent codes = codePanel;
+        if(services.uploadReceiver != null) {
+            JPanel uploadCodePanel = new JPanel();
+            uploadCodePanel.setLayout(new BorderLayout());
+            uploadCodePanel.setBorder(BorderFactory.createTitledBorder("Upload to " + services.uploadReceiver.getDirectory().getName()));
+            uploadCodePanel.add(uploadCodeScaler = new ImageScaler(Util.getImage(QrCode.encodeText(uploadCodeUri, QrCode.Ecc.LOW), null, null)), BorderLayout.CENTER);
+
+            codes = new JPanel(new GridLayout(1, 2));
+            codes.add(codePanel);
+            codes.add(uploadCodePanel);
+        }
+
         JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT);
         splitPane.setOneTouchExpandable(true);
-        codePanel.setMinimumSize(new Dimension(100, 100));
+        codes.setMinimumSize(new Dimension(100, 100));
         splitPane.setResizeWeight(0.65);
-        splitPane.setTopComponent(codePanel);
+        splitPane.setTopComponent(codes);
         splitPane.setBottomComponent(scrollPane);
         con.add(splitPane, gbc);
 
@@ -498,53 +890,1131 @@ public class QuickGet implements Runnable {
         frame.add(con, BorderLayout.CENTER);
     }
 
-    public static class ServerThread extends NanoHTTPD {
+    public static class ServerThread extends NanoHTTPD implements FileServer {
 
         private Logger log = LoggerFactory.getLogger(ServerThread.class);
 
-        private File fileToServe;
-        private String nameToServe;
-        private String mimeTypeToServe;
+        public static final String CHECKSUM_HEADER = "X-Checksum-SHA256-Tree";
+        public static final String ALLOWED_METHODS = "GET, HEAD, OPTIONS";
+        public static final String UPLOAD_METHODS = "GET, HEAD, OPTIONS, POST, PUT";
+        public static final String RESUMABLE_METHODS = "GET, HEAD, OPTIONS, POST, PATCH, DELETE";
+
+        private static final byte [] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+        private final AtomicReference<ServeTarget> target = new AtomicReference<>();
+
+        private volatile TransferMode transferMode = TransferMode.STREAM;
+        private volatile ContentCache contentCache = null;
+        private volatile ContentHasher contentHasher = null;
+        private volatile GzipVariants gzipVariants = null;
+        private volatile BandwidthLimiter bandwidthLimiter = null;
+        private volatile AdmissionControl admissionControl = null;
+        private volatile UploadReceiver uploadReceiver = null;
+        private volatile SharedReads sharedReads = null;
+        private volatile ImageVariants imageVariants = null;
+        private volatile LandingPage landingPage = null;
+        private volatile BufferPool bufferPool = null;
+        private volatile TransferReaper transferReaper = null;
+        private volatile long idleTimeoutMillis = SOCKET_READ_TIMEOUT;
+        // the reaper watching while running
+        private TransferReaper reaper = null;
+
+        private final ThreadLocal<Socket> currentSocket = new ThreadLocal<>();
+
+        private final int port;
+        private volatile ServerSocket listener = null;
+        private volatile boolean draining = false;
+        private final AtomicInteger openConnections = new AtomicInteger();
+        private final Transfers transfers = new Transfers();
 
         public ServerThread(int port, File fileToServe, String nameToServe, String mimeTypeToServe) {
             super(port);
+            this.port = port;
+            // channel backed sockets allow FileChannel.transferTo to use sendfile
+            setServerSocketFactory(() -> listener = ServerSocketChannel.open().socket());
             setFile(fileToServe, nameToServe, mimeTypeToServe);
         }
 
-       public void setFile(File fileToServe, String nameToServe, String mimeTypeToServe) {
-           this.fileToServe = fileToServe;
-           this.nameToServe = nameToServe == null ? fileToServe.getName() : nameToServe;
-           this.mimeTypeToServe = mimeTypeToServe == null ? MIME_OCTET_STREAM : mimeTypeToServe;
-       }
+        @Override
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public synchronized void start() throws IOException {
+            // the read timeout also ends kept alive connections waiting for their next request
+            start((int)Math.min(Integer.MAX_VALUE, idleTimeoutMillis));
+            reaper = transferReaper;
+            if(reaper != null) {
+                reaper.watch(transfers, port);
+            }
+        }
+
+        @Override
+        public void setIdleTimeout(long idleTimeoutMillis) {
+            this.idleTimeoutMillis = idleTimeoutMillis;
+        }
+
+        @Override
+        public void setTransferReaper(TransferReaper transferReaper) {
+            this.transferReaper = transferReaper;
+        }
+
+        @Override
+        public void stopAccepting() {
+            draining = true;
+            ServerSocket socket = listener;
+            if(socket != null) {
+                try {
+                    // ends the accept loop, client connections stay open
+                    socket.close();
+                } catch (IOException e) {
+                    log.debug("Could not close server socket", e);
+                }
+            }
+        }
+
+        @Override
+        public int getOpenConnections() {
+            return openConnections.get();
+        }
+
+        @Override
+        public Transfers getTransfers() {
+            return transfers;
+        }
+
+        public TransferMode getTransferMode() {
+            return transferMode;
+        }
+
+        public void setTransferMode(TransferMode transferMode) {
+            this.transferMode = transferMode == null ? TransferMode.STREAM : transferMode;
+        }
+
+        public BufferPool getBufferPool() {
+            return bufferPool;
+        }
+
+        /**
+         * @param bufferPool direct buffers file content is copied through in stream mode, null to copy with NanoHTTPD
+         */
+        public void setBufferPool(BufferPool bufferPool) {
+            this.bufferPool = bufferPool;
+        }
+
+        public SharedReads getSharedReads() {
+            return sharedReads;
+        }
+
+        /**
+         * @param sharedReads lets concurrent full downloads of a file share one read in stream mode, null to disable
+         */
+        public void setSharedReads(SharedReads sharedReads) {
+            this.sharedReads = sharedReads;
+        }
+
+        public ImageVariants getImageVariants() {
+            return imageVariants;
+        }
+
+        /**
+         * @param imageVariants answers image requests with w/h parameters with downscaled variants, null to always send the original
+         */
+        public void setImageVariants(ImageVariants imageVariants) {
+            this.imageVariants = imageVariants;
+        }
+
+        public LandingPage getLandingPage() {
+            return landingPage;
+        }
+
+        @Override
+        public void setLandingPage(LandingPage landingPage) {
+            this.landingPage = landingPage;
+        }
+
+        public ContentCache getContentCache() {
+            return contentCache;
+        }
+
+        @Override
+        public void setContentCache(ContentCache contentCache) {
+            this.contentCache = contentCache;
+        }
+
+        public ContentHasher getContentHasher() {
+            return contentHasher;
+        }
+
+        @Override
+        public void setContentHasher(ContentHasher contentHasher) {
+            this.contentHasher = contentHasher;
+        }
+
+        public GzipVariants getGzipVariants() {
+            return gzipVariants;
+        }
+
+        @Override
+        public void setGzipVariants(GzipVariants gzipVariants) {
+            this.gzipVariants = gzipVariants;
+        }
+
+        public BandwidthLimiter getBandwidthLimiter() {
+            return bandwidthLimiter;
+        }
+
+        @Override
+        public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+            this.bandwidthLimiter = bandwidthLimiter;
+        }
+
+        public AdmissionControl getAdmissionControl() {
+            return admissionControl;
+        }
+
+        @Override
+        public void setAdmissionControl(AdmissionControl admissionControl) {
+            this.admissionControl = admissionControl;
+        }
+
+        public UploadReceiver getUploadReceiver() {
+            return uploadReceiver;
+        }
+
+        /**
+         * @param uploadReceiver stores files posted to /upload, null to not accept uploads
+         */
+        public void setUploadReceiver(UploadReceiver uploadReceiver) {
+            this.uploadReceiver = uploadReceiver;
+        }
+
+        @Override
+        protected ClientHandler createClientHandler(Socket finalAccept, InputStream inputStream) {
+            return new CountingClientHandler(inputStream, finalAccept);
+        }
+
+        private class CountingClientHandler extends ClientHandler implements WorkerAsyncRunner.Rejectable {
+            private final Socket socket;
+
+            CountingClientHandler(InputStream inputStream, Socket socket) {
+                super(inputStream, socket);
+                this.socket = socket;
+            }
+
+            @Override
+            public void run() {
+                currentSocket.set(socket);
+                openConnections.incrementAndGet();
+                try {
+                    super.run();
+                } finally {
+                    openConnections.decrementAndGet();
+                    currentSocket.remove();
+                }
+            }
+
+            @Override
+            public void reject(int retryAfterSeconds) {
+                String busy = "HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + retryAfterSeconds
+                    + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+                try {
+                    socket.getOutputStream().write(busy.getBytes(StandardCharsets.US_ASCII));
+                } catch (IOException e) {
+                    log.debug("Could not reject client", e);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void setFile(File fileToServe, String nameToServe, String mimeTypeToServe) {
+            ServeTarget current = target.get();
+            DirectoryIndex index = DirectoryIndex.replace(current == null ? null : current.index, fileToServe);
+            replace(ServeTarget.open(fileToServe, nameToServe, mimeTypeToServe, index));
+        }
+
+        /**
+         * Serves content that is still being produced instead of a file. The source is
+         * not closed when it is replaced.
+         */
+        public synchronized void setLiveSource(LiveSource source, String nameToServe, String mimeTypeToServe) {
+            ServeTarget current = target.get();
+            DirectoryIndex.closeQuietly(current == null ? null : current.index);
+            replace(ServeTarget.live(source, nameToServe, mimeTypeToServe));
+        }
+
+        private void replace(ServeTarget next) {
+            ServeTarget previous = target.getAndSet(next);
+            if(previous != null) {
+                if(contentCache != null && !previous.file.equals(next.file)) {
+                    contentCache.invalidate(previous.file);
+                }
+                // transfers still reading keep the previous file open
+                previous.release();
+            }
+        }
+
+        @Override
+        public ServeTarget getServeTarget() {
+            return target.get();
+        }
+
+        @Override
+        public synchronized void stop() {
+            if(reaper != null) {
+                reaper.unwatch(transfers);
+                reaper = null;
+            }
+            super.stop();
+            ServeTarget current = target.get();
+            DirectoryIndex.closeQuietly(current.index);
+            target.set(current.detached());
+            current.release();
+        }
 
         @Override
         public Response serve(IHTTPSession session) {
-            if(!session.getMethod().equals(Method.GET)) {
-                return newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "Method not allowed!");
+            Response response = respond(session);
+            if(draining) {
+                // idle keep-alive connections would only end with the read timeout
+                response.closeConnection(true);
+            }
+            return response;
+        }
+
+        private Response respond(IHTTPSession session) {
+            Method method = session.getMethod();
+            UploadReceiver uploads = uploadReceiver;
+            boolean uploadUri = uploads != null && isUploadUri(session.getUri(), UploadReceiver.PATH);
+            boolean resumableUri = uploads != null && isUploadUri(session.getUri(), ResumableUploads.PATH);
+            if(method == Method.OPTIONS) {
+                Response response = newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "");
+                response.addHeader("Allow", uploadUri ? UPLOAD_METHODS : resumableUri ? RESUMABLE_METHODS : ALLOWED_METHODS);
+                response.addHeader("Accept-Ranges", "bytes");
+                return response;
+            }
+            if(uploadUri && (method == Method.POST || method == Method.PUT)) {
+                return receiveUpload(session, uploads);
+            }
+            if(resumableUri) {
+                Response response = resumableUpload(session, uploads.getResumableUploads());
+                if(method == Method.HEAD) {
+                    response.setData(new ByteArrayInputStream(new byte[0]));
+                }
+                return response;
             }
+            if(method != Method.GET && method != Method.HEAD) {
+                Response response = newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "Method not allowed!");
+                response.addHeader("Allow", ALLOWED_METHODS);
+                // a request body would be taken for the next request
+                response.closeConnection(true);
+                return response;
+            }
+
+            Response response = route(session);
+            if(method == Method.HEAD) {
+                // keeps the announced length, but nothing is sent
+                response.setData(new ByteArrayInputStream(new byte[0]));
+            }
+            return response;
+        }
+
+        private Response route(IHTTPSession session) {
             String requestUri = session.getUri();
 
             if(requestUri.startsWith("/")) {
                 requestUri = requestUri.substring(1);
             }
 
-            if(nameToServe.equalsIgnoreCase(requestUri)) {
-                try {
-                    FileInputStream fis = new FileInputStream(fileToServe);
-                    if(fileToServe.length() > 1024*64) {
-                        log.debug("Chunking transfer...");
-                        return newChunkedResponse(Response.Status.OK, mimeTypeToServe, fis);
-                    } else {
-                        log.debug("Fixed transfer...");
-                        return newFixedLengthResponse(Response.Status.OK, mimeTypeToServe, fis, fileToServe.length());
-                    }
-                } catch (FileNotFoundException e) {
-                    return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "File not found!");
+            ArchiveFormat archive = ArchiveFormat.fromParameter(parameter(session, "archive"));
+            if(archive != null) {
+                return serveArchive(session, archive, requestUri);
+            }
+
+            UploadReceiver uploads = uploadReceiver;
+            if(uploads != null && requestUri.equals(UploadReceiver.PATH)) {
+                byte [] form = uploads.getForm();
+                return newFixedLengthResponse(Response.Status.OK, MIME_HTML + "; charset=utf-8", new ByteArrayInputStream(form), form.length);
+            }
+
+            ServeTarget current = target.get();
+            LandingPage landing = landingPage;
+            byte [] page = landing != null && requestUri.equals(LandingPage.PATH) ? landing.render(current) : null;
+            if(page != null) {
+                return newFixedLengthResponse(Response.Status.OK, MIME_HTML + "; charset=utf-8", new ByteArrayInputStream(page), page.length);
+            }
+
+            DirectoryIndex index = current.index;
+            if(index != null) {
+                if(requestUri.isEmpty()) {
+                    byte [] listing = index.getListing();
+                    return newFixedLengthResponse(Response.Status.OK, MIME_HTML + "; charset=utf-8", new ByteArrayInputStream(listing), listing.length);
+                }
+                DirectoryIndex.Entry entry = index.lookup(requestUri);
+                if(entry != null) {
+                    return serveFile(session, entry.file, entry.mimeType, null);
                 }
+            } else if(current.name.equalsIgnoreCase(requestUri)) {
+                return current.live != null ? serveLive(session, current) : serveFile(session, current.file, current.mimeType, current);
             }
 
             return super.serve(session);
         }
+
+        private static String parameter(IHTTPSession session, String name) {
+            List<String> values = session.getParameters().get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
+        /**
+         * Streams an archive of the directory at the request path (all files for the root) or of
+         * the files given as file parameters. Nothing is prepared in advance, the first bytes go
+         * out right away.
+         */
+        private Response serveArchive(IHTTPSession session, ArchiveFormat format, String requestUri) {
+            ServeTarget current = target.get();
+            DirectoryIndex index = current.index;
+            List<DirectoryIndex.Entry> entries;
+            String name;
+            if(current.live != null) {
+                // the length is needed before the content
+                entries = Collections.emptyList();
+                name = current.name;
+            } else if(index == null) {
+                entries = Collections.singletonList(new DirectoryIndex.Entry(current.file, current.name, current.file.length(), current.file.lastModified()));
+                name = current.name;
+            } else {
+                List<String> files = session.getParameters().get("file");
+                if(files != null && !files.isEmpty()) {
+                    Map<String, DirectoryIndex.Entry> selected = new TreeMap<>();
+                    for(String file : files) {
+                        DirectoryIndex.Entry entry = index.lookup(file);
+                        if(entry != null) {
+                            selected.put(entry.path, entry);
+                        }
+                    }
+                    entries = new ArrayList<>(selected.values());
+                } else {
+                    entries = index.select(requestUri);
+                }
+                String directory = requestUri.replaceAll("/+$", "");
+                name = directory.isEmpty() ? index.getRoot().getName() : directory.substring(directory.lastIndexOf('/') + 1);
+            }
+            if(entries.isEmpty()) {
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "No files to archive!");
+            }
+
+            String fileName = name + "." + format.extension;
+            log.info("Streaming {} files as {} to {}", entries.size(), fileName, session.getRemoteIpAddress());
+            long length = format.length(entries);
+            InputStream archive = shape(format.open(entries));
+            Response response = length < 0
+                ? newChunkedResponse(Response.Status.OK, format.mimeType, archive)
+                : newFixedLengthResponse(Response.Status.OK, format.mimeType, archive, length);
+            response.addHeader("Content-Disposition", contentDisposition(fileName));
+            try {
+                return track(session, admit(session, response), fileName, length);
+            } catch (IOException e) {
+                log.error("Error serving archive", e);
+                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Error creating archive!");
+            }
+        }
+
+        private static String contentDisposition(String fileName) {
+            StringBuilder ascii = new StringBuilder(fileName.length());
+            for(char c : fileName.toCharArray()) {
+                ascii.append(c >= 32 && c < 127 && c != '"' && c != '\\' ? c : '_');
+            }
+            return String.format("attachment; filename=\"%s\"; filename*=UTF-8''%s",
+                ascii, URLEncoder.encode(fileName, StandardCharsets.UTF_8).replace("+", "%20"));
+        }
+
+        private static boolean isUploadUri(String uri, String prefix) {
+            String path = uri.startsWith("/") ? uri.substring(1) : uri;
+            return path.equals(prefix) || path.startsWith(prefix + "/");
+        }
+
+        /**
+         * Streams the request body to the upload directory, either as multipart/form-data
+         * (browser form) or as raw body named by the path below /upload.
+         */
+        private Response receiveUpload(IHTTPSession session, UploadReceiver uploads) {
+            long length = parseLong(String.valueOf(session.getHeaders().get("content-length")), -1);
+            if(length < 0) {
+                Response response = newFixedLengthResponse(Response.Status.LENGTH_REQUIRED, MIME_PLAINTEXT, "Content-Length required!");
+                response.closeConnection(true);
+                return response;
+            }
+            try {
+                if("100-continue".equalsIgnoreCase(session.getHeaders().get("expect"))) {
+                    sendContinue();
+                }
+                String boundary = UploadReceiver.multipartBoundary(session.getHeaders().get("content-type"));
+                if(boundary != null) {
+                    List<File> files = uploads.receiveMultipart(session.getInputStream(), length, boundary);
+                    byte [] result = uploads.renderResult(files);
+                    return newFixedLengthResponse(Response.Status.OK, MIME_HTML + "; charset=utf-8", new ByteArrayInputStream(result), result.length);
+                }
+                String path = session.getUri().startsWith("/") ? session.getUri().substring(1) : session.getUri();
+                String name = path.length() > UploadReceiver.PATH.length() ? path.substring(UploadReceiver.PATH.length() + 1) : null;
+                File file = uploads.receive(session.getInputStream(), length, name);
+                return newFixedLengthResponse(Response.Status.CREATED, MIME_PLAINTEXT, file.getName());
+            } catch (IOException e) {
+                log.warn("Upload from {} failed: {}", session.getRemoteIpAddress(), e.toString());
+                Response response = newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Upload failed!");
+                // the rest of the body may still be on its way
+                response.closeConnection(true);
+                return response;
+            }
+        }
+
+        /**
+         * Resumable uploads: POST /resumable creates an upload (Upload-Length, Upload-Name),
+         * PATCH /resumable/id writes a chunk at Upload-Offset, HEAD tells what was received
+         * and DELETE cancels.
+         */
+        private Response resumableUpload(IHTTPSession session, ResumableUploads uploads) {
+            Method method = session.getMethod();
+            Map<String, String> headers = session.getHeaders();
+            String path = session.getUri().startsWith("/") ? session.getUri().substring(1) : session.getUri();
+            String id = path.length() > ResumableUploads.PATH.length() ? path.substring(ResumableUploads.PATH.length() + 1) : null;
+            long contentLength = parseLong(String.valueOf(headers.get("content-length")), -1);
+            try {
+                if(id == null) {
+                    if(method != Method.POST) {
+                        return methodNotAllowed("POST, OPTIONS");
+                    }
+                    long length = parseLong(String.valueOf(headers.get("upload-length")), -1);
+                    if(length < 0 || contentLength > 0) {
+                        return clientError(Response.Status.BAD_REQUEST, "Upload-Length required, no body expected!");
+                    }
+                    String name = headers.get("upload-name");
+                    ResumableUploads.Upload upload = uploads.create(name == null ? null : URLDecoder.decode(name, "UTF-8"), length);
+                    if(upload == null) {
+                        Response response = newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Too many unfinished uploads!");
+                        response.addHeader("Retry-After", "60");
+                        return response;
+                    }
+                    Response response = newFixedLengthResponse(Response.Status.CREATED, MIME_PLAINTEXT, upload.getId());
+                    response.addHeader("Location", "/" + ResumableUploads.PATH + "/" + upload.getId());
+                    addUploadHeaders(response, upload);
+                    return response;
+                }
+
+                ResumableUploads.Upload upload = uploads.get(id);
+                if(upload == null) {
+                    return clientError(Response.Status.NOT_FOUND, "Unknown upload!");
+                }
+                switch (method) {
+                    case GET:
+                    case HEAD: {
+                        Response response = newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, "");
+                        addUploadHeaders(response, upload);
+                        return response;
+                    }
+                    case PATCH: {
+                        long offset = parseLong(String.valueOf(headers.get("upload-offset")), -1);
+                        if(contentLength < 0) {
+                            return clientError(Response.Status.LENGTH_REQUIRED, "Content-Length required!");
+                        }
+                        if(offset < 0 || offset + contentLength > upload.getLength()) {
+                            return clientError(Response.Status.BAD_REQUEST, "Upload-Offset outside of upload!");
+                        }
+                        if("100-continue".equalsIgnoreCase(headers.get("expect"))) {
+                            sendContinue();
+                        }
+                        File file = upload.write(session.getInputStream(), offset, contentLength);
+                        Response response = file != null
+                            ? newFixedLengthResponse(Response.Status.OK, MIME_PLAINTEXT, file.getName())
+                            : newFixedLengthResponse(Response.Status.NO_CONTENT, MIME_PLAINTEXT, "");
+                        addUploadHeaders(response, upload);
+                        return response;
+                    }
+                    case DELETE:
+                        uploads.cancel(id);
+                        return newFixedLengthResponse(Response.Status.NO_CONTENT, MIME_PLAINTEXT, "");
+                    default:
+                        return methodNotAllowed("GET, HEAD, OPTIONS, PATCH, DELETE");
+                }
+            } catch (IOException e) {
+                log.warn("Resumable upload from {} failed: {}", session.getRemoteIpAddress(), e.toString());
+                return clientError(Response.Status.INTERNAL_ERROR, "Upload failed!");
+            }
+        }
+
+        private static void addUploadHeaders(Response response, ResumableUploads.Upload upload) throws UnsupportedEncodingException {
+            response.addHeader("Upload-Offset", Long.toString(upload.getOffset()));
+            response.addHeader("Upload-Length", Long.toString(upload.getLength()));
+            response.addHeader("Upload-Ranges", upload.getReceived());
+            File file = upload.getCompleted();
+            if(file != null) {
+                response.addHeader("Upload-Name", URLEncoder.encode(file.getName(), "UTF-8").replace("+", "%20"));
+            }
+            response.addHeader("Cache-Control", "no-store");
+        }
+
+        private static Response methodNotAllowed(String allowed) {
+            Response response = newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "Method not allowed!");
+            response.addHeader("Allow", allowed);
+            response.closeConnection(true);
+            return response;
+        }
+
+        /**
+         * Error response for requests whose body has not been read, the connection can not be reused.
+         */
+        private static Response clientError(Response.Status status, String message) {
+            Response response = newFixedLengthResponse(status, MIME_PLAINTEXT, message);
+            response.closeConnection(true);
+            return response;
+        }
+
+        /**
+         * Interim response for clients waiting for permission to send the body (like curl for large uploads).
+         */
+        private void sendContinue() throws IOException {
+            Socket socket = currentSocket.get();
+            if(socket != null) {
+                OutputStream out = socket.getOutputStream();
+                out.write(CONTINUE);
+                out.flush();
+            }
+        }
+
+        /**
+         * @param served the target if the file is the served single file, its open channel is used while it is current
+         */
+        private Response serveFile(IHTTPSession session, File file, String mimeType, ServeTarget served) {
+            try {
+                ImageVariants images = imageVariants;
+                if(images != null && ImageVariants.isScalable(mimeType)) {
+                    int width = ImageVariants.dimension(parameter(session, "w"));
+                    int height = ImageVariants.dimension(parameter(session, "h"));
+                    if(width > 0 || height > 0) {
+                        Response variant = serveImageVariant(session, images, file, mimeType, width, height);
+                        if(variant != null) {
+                            return variant;
+                        }
+                    }
+                }
+                return serveContent(session, file, mimeType, served);
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "File not found!");
+            } catch (IOException e) {
+                log.error("Error serving file", e);
+                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Error reading file!");
+            }
+        }
+
+        /**
+         * @return the downscaled image or null if the original is not larger than requested
+         */
+        private Response serveImageVariant(IHTTPSession session, ImageVariants images, File file, String mimeType, int width, int height) throws IOException {
+            FileKey key = FileKey.of(file);
+            if(key == null) {
+                throw new FileNotFoundException(file.getAbsolutePath());
+            }
+            String etag = HttpConditions.imageEtag(key, width, height);
+            if(isNotModified(session, etag, key)) {
+                // only rendered variants have this tag
+                Response response = newFixedLengthResponse(Response.Status.NOT_MODIFIED, null, new ByteArrayInputStream(new byte[0]), 0);
+                response.addHeader("ETag", etag);
+                return response;
+            }
+            if(session.getMethod() == Method.HEAD) {
+                // rendering only to describe the result is not worth it, the length is left out if it is not known
+                ImageVariants.Variant variant = images.getIfDone(key, width, height);
+                if(variant != null && variant.isOriginal()) {
+                    return null;
+                }
+                Response response = variant != null
+                    ? newHeaderOnlyResponse(Response.Status.OK, variant.mimeType, variant.data.length)
+                    : newChunkedResponse(Response.Status.OK, ImageVariants.variantMimeType(mimeType), new ByteArrayInputStream(new byte[0]));
+                response.addHeader("ETag", etag);
+                response.addHeader("Last-Modified", Util.formatHttpDate(key.modified));
+                return response;
+            }
+
+            // rendering holds a worker and memory, so it waits for a transfer slot like the transfer itself
+            AdmissionControl admission = admissionControl;
+            AdmissionControl.Permit permit = null;
+            if(admission != null) {
+                permit = acquire(admission);
+                if(permit == null) {
+                    return busy(session, admission);
+                }
+            }
+            ImageVariants.Variant variant;
+            try {
+                variant = images.get(key, width, height);
+            } catch (IOException | RuntimeException e) {
+                release(permit);
+                throw e;
+            }
+            if(variant == null) {
+                // the original is admitted on its own
+                release(permit);
+                return null;
+            }
+            log.debug("Image variant {}x{}...", variant.width, variant.height);
+            Response response = newFixedLengthResponse(Response.Status.OK, variant.mimeType, shape(new ByteArrayInputStream(variant.data)), variant.data.length);
+            // the checksum header describes the original, so it is left out
+            response.addHeader("ETag", etag);
+            response.addHeader("Last-Modified", Util.formatHttpDate(key.modified));
+            return track(session, permit == null ? response : onClose(response, permit), file.getName(), variant.data.length);
+        }
+
+        /**
+         * Streams content that is still being produced as chunked response, Range is ignored.
+         */
+        private Response serveLive(IHTTPSession session, ServeTarget served) {
+            Response response;
+            if(session.getMethod() == Method.HEAD) {
+                // joining would hold back the source for a client that never reads
+                response = newChunkedResponse(Response.Status.OK, served.mimeType, new ByteArrayInputStream(new byte[0]));
+                response.addHeader("Cache-Control", "no-store");
+                return response;
+            }
+            try {
+                InputStream content = served.live.open();
+                if(content == null) {
+                    return newFixedLengthResponse(Response.Status.GONE, MIME_PLAINTEXT, "The start of the stream is no longer available!");
+                }
+                log.info("Streaming {} to {}", served.file, session.getRemoteIpAddress());
+                response = newChunkedResponse(Response.Status.OK, served.mimeType, shape(content));
+                response.addHeader("Cache-Control", "no-store");
+                return track(session, admit(session, response), served.name, -1, true);
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "File not found!");
+            } catch (IOException e) {
+                log.error("Error streaming {}", served.file, e);
+                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Error reading stream!");
+            }
+        }
+
+        @Override
+        protected boolean useGzipWhenAccepted(Response r) {
+            if(gzipVariants != null) {
+                // file content is compressed (and cached) by the variants
+                return false;
+            }
+            // Content-Range refers to the identity encoding, never gzip partial content
+            return r.getStatus() == Response.Status.OK && !(r instanceof ChannelResponse) && super.useGzipWhenAccepted(r);
+        }
+
+        /**
+         * Holds back responses with a body until a transfer slot is free.
+         */
+        private Response admit(IHTTPSession session, Response response) throws IOException {
+            AdmissionControl admission = admissionControl;
+            if(admission == null || session.getMethod() == Method.HEAD
+                || response.getStatus() != Response.Status.OK && response.getStatus() != Response.Status.PARTIAL_CONTENT) {
+                return response;
+            }
+
+            AdmissionControl.Permit permit = acquire(admission);
+            if(permit == null) {
+                response.close();
+                return busy(session, admission);
+            }
+            return onClose(response, permit);
+        }
+
+        /**
+         * @return the permit or null if the client has to be turned away
+         */
+        private static AdmissionControl.Permit acquire(AdmissionControl admission) {
+            try {
+                return admission.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        private static void release(AdmissionControl.Permit permit) {
+            if(permit != null) {
+                permit.release();
+            }
+        }
+
+        private Response busy(IHTTPSession session, AdmissionControl admission) {
+            log.info("Too many transfers, rejecting {}", session.getRemoteIpAddress());
+            Response busy = newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Too many transfers, please retry later!");
+            busy.addHeader("Retry-After", Integer.toString(admission.getRetryAfterSeconds()));
+            return busy;
+        }
+
+        private Response track(IHTTPSession session, Response response, String name, long length) {
+            return track(session, response, name, length, false);
+        }
+
+        /**
+         * Registers the body of the response as transfer until the response is closed.
+         *
+         * @param length of the body as sent, -1 if not known in advance
+         * @param live the body is content still being produced, reads waiting for it do not count as idle
+         */
+        private Response track(IHTTPSession session, Response response, String name, long length, boolean live) {
+            if(session.getMethod() != Method.GET
+                || response.getStatus() != Response.Status.OK && response.getStatus() != Response.Status.PARTIAL_CONTENT) {
+                return response;
+            }
+            Transfers.Transfer transfer = transfers.begin(session.getRemoteIpAddress(), name, length, live);
+            Socket socket = currentSocket.get();
+            if(socket != null) {
+                // unblocks a write the client does not receive anymore
+                transfer.setAbort(() -> closeQuietly(socket));
+            }
+            if(response instanceof ChannelResponse) {
+                ((ChannelResponse) response).setTransfer(transfer);
+                ((ChannelResponse) response).onClose(() -> transfers.end(transfer));
+                return response;
+            }
+            response.setData(new FilterInputStream(response.getData()) {
+                @Override
+                public int read() throws IOException {
+                    if(live) {
+                        transfer.beginWait();
+                    }
+                    try {
+                        int b = super.read();
+                        if(b >= 0) {
+                            transfer.add(1);
+                        }
+                        return b;
+                    } finally {
+                        if(live) {
+                            transfer.endWait();
+                        }
+                    }
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if(live) {
+                        transfer.beginWait();
+                    }
+                    try {
+                        int n = super.read(b, off, len);
+                        if(n > 0) {
+                            transfer.add(n);
+                        }
+                        return n;
+                    } finally {
+                        if(live) {
+                            transfer.endWait();
+                        }
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        transfers.end(transfer);
+                    }
+                }
+            });
+            return response;
+        }
+
+        /**
+         * Runs the action once NanoHTTPD closes the response after sending it.
+         */
+        private static Response onClose(Response response, Runnable action) {
+            if(response instanceof ChannelResponse) {
+                ((ChannelResponse) response).onClose(action);
+                return response;
+            }
+            response.setData(new FilterInputStream(response.getData()) {
+                private boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        // NanoHTTPD closes the data after sending it and again with the response
+                        if(!closed) {
+                            closed = true;
+                            action.run();
+                        }
+                    }
+                }
+            });
+            return response;
+        }
+
+        private Response serveContent(IHTTPSession session, File file, String mimeType, ServeTarget served) throws IOException {
+            FileKey key = FileKey.of(file);
+            if(key == null) {
+                throw new FileNotFoundException(file.getAbsolutePath());
+            }
+            if(served != null && !served.matches(key)) {
+                // changed on disk since it was selected
+                served = null;
+            }
+            boolean compressible = gzipVariants != null && GzipVariants.isCompressible(mimeType, file.getName());
+            if(compressible && HttpConditions.acceptsGzip(session.getHeaders().get("accept-encoding")) && session.getHeaders().get("range") == null) {
+                File variant = session.getMethod() == Method.HEAD ? gzipVariants.getIfDone(key) : gzipVariants.getIfReady(key);
+                if(variant != null) {
+                    return track(session, admit(session, serveGzipVariant(session, key, variant, mimeType)), file.getName(), variant.length());
+                }
+            }
+
+            String etag = served != null ? served.etag : HttpConditions.etag(key);
+            String lastModified = served != null ? served.lastModified : Util.formatHttpDate(key.modified);
+
+            Response response;
+            if(isNotModified(session, etag, key)) {
+                log.debug("Not modified...");
+                response = newHeaderOnlyResponse(Response.Status.NOT_MODIFIED, mimeType, key.size);
+                addValidators(response, key, etag, lastModified);
+                if(compressible) {
+                    response.addHeader("Vary", "Accept-Encoding");
+                }
+                return response;
+            }
+
+            if(session.getMethod() == Method.HEAD) {
+                // Range is only defined for GET, HEAD describes the full content
+                response = newHeaderOnlyResponse(Response.Status.OK, mimeType, key.size);
+                response.addHeader("Accept-Ranges", "bytes");
+                addValidators(response, key, etag, lastModified);
+                if(compressible) {
+                    response.addHeader("Vary", "Accept-Encoding");
+                }
+                return response;
+            }
+
+            ByteBuffer cached = contentCache == null ? null : contentCache.get(key);
+            long length = cached != null ? cached.remaining() : key.size;
+            List<ByteRange> ranges = HttpConditions.isRangeApplicable(session.getHeaders().get("if-range"), etag, key) ? ByteRange.parse(session.getHeaders().get("range"), length) : null;
+
+            long bodyLength;
+            if(ranges == null) {
+                response = newContentResponse(Response.Status.OK, key, served, mimeType, cached, 0, length);
+                bodyLength = length;
+            } else if(ranges.isEmpty()) {
+                log.debug("Unsatisfiable range: {}", session.getHeaders().get("range"));
+                response = newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "Range not satisfiable!");
+                response.addHeader("Content-Range", ByteRange.unsatisfiedContentRange(length));
+                bodyLength = -1;
+            } else if(ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+                log.debug("Range transfer {}...", range);
+                response = newContentResponse(Response.Status.PARTIAL_CONTENT, key, served, mimeType, cached, range.start, range.length());
+                response.addHeader("Content-Range", range.contentRange(length));
+                bodyLength = range.length();
+            } else {
+                log.debug("Multipart range transfer {}...", ranges);
+                String boundary = ByteRange.multipartBoundary(length);
+                response = newMultipartRangeResponse(key, served, mimeType, cached, ranges, length, boundary);
+                bodyLength = ByteRange.multipartLength(ranges, boundary, mimeType, length);
+            }
+            response.addHeader("Accept-Ranges", "bytes");
+            addValidators(response, key, etag, lastModified);
+            if(compressible) {
+                response.addHeader("Vary", "Accept-Encoding");
+            }
+            return track(session, admit(session, response), file.getName(), bodyLength);
+        }
+
+        private Response serveGzipVariant(IHTTPSession session, FileKey key, File variant, String mimeType) throws IOException {
+            String etag = HttpConditions.gzipEtag(key);
+            FileKey variantKey = FileKey.of(variant);
+            if(variantKey == null) {
+                throw new FileNotFoundException(variant.getAbsolutePath());
+            }
+
+            Response response;
+            if(isNotModified(session, etag, key)) {
+                log.debug("Not modified (gzip)...");
+                response = newHeaderOnlyResponse(Response.Status.NOT_MODIFIED, mimeType, variantKey.size);
+            } else if(session.getMethod() == Method.HEAD) {
+                response = newHeaderOnlyResponse(Response.Status.OK, mimeType, variantKey.size);
+            } else {
+                log.debug("Gzip variant transfer...");
+                ByteBuffer cached = contentCache == null ? null : contentCache.get(variantKey);
+                response = newContentResponse(Response.Status.OK, variantKey, null, mimeType, cached, 0, variantKey.size);
+            }
+            response.addHeader("Content-Encoding", "gzip");
+            response.addHeader("Vary", "Accept-Encoding");
+            addValidators(response, key, etag, Util.formatHttpDate(key.modified));
+            return response;
+        }
+
+        private void addValidators(Response response, FileKey key, String etag, String lastModified) {
+            response.addHeader("ETag", etag);
+            response.addHeader("Last-Modified", lastModified);
+            ContentHasher hasher = contentHasher;
+            if(hasher != null) {
+                String hash = hasher.getIfDone(key);
+                if(hash != null) {
+                    response.addHeader(CHECKSUM_HEADER, hash);
+                }
+            }
+        }
+
+        private static boolean isNotModified(IHTTPSession session, String etag, FileKey key) {
+            return HttpConditions.isNotModified(session.getHeaders().get("if-none-match"), session.getHeaders().get("if-modified-since"), etag, key);
+        }
+
+        /**
+         * Response announcing a body of the given length without sending one.
+         */
+        private static Response newHeaderOnlyResponse(Response.IStatus status, String mimeType, long length) {
+            return newFixedLengthResponse(status, mimeType, new ByteArrayInputStream(new byte[0]), length);
+        }
+
+        /**
+         * @param served target opened for this version of the file, its channel is read instead of opening the file, may be null
+         */
+        private Response newContentResponse(Response.IStatus status, FileKey key, ServeTarget served, String mimeType, ByteBuffer cached, long position, long length) throws IOException {
+            if(cached != null) {
+                ByteBuffer content = ContentCache.slice(cached, position, length);
+                BufferPool pool = pool(status, mimeType);
+                if(transferMode == TransferMode.SENDFILE || pool != null) {
+                    log.debug("Cached channel transfer...");
+                    ByteBufferResponse response = new ByteBufferResponse(status, mimeType, content, currentSocket.get());
+                    response.setBufferPool(pool);
+                    return shape(response);
+                }
+                log.debug("Cached transfer...");
+                return newFixedLengthResponse(status, mimeType, shape(new ByteBufferInputStream(content)), length);
+            }
+
+            ServeTarget retained = served != null && served.retain() ? served : null;
+            try {
+                Response response = newFileResponse(status, key, retained == null ? null : retained.getChannel(), mimeType, position, length);
+                return retained == null ? response : onClose(response, retained::release);
+            } catch (IOException | RuntimeException e) {
+                if(retained != null) {
+                    retained.release();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * @param opened channel that stays open after the response, null to open the file
+         */
+        private Response newFileResponse(Response.IStatus status, FileKey key, FileChannel opened, String mimeType, long position, long length) throws IOException {
+            if(transferMode == TransferMode.SENDFILE) {
+                log.debug("Sendfile transfer...");
+                FileChannel channel = opened != null ? opened : FileChannel.open(key.path, StandardOpenOption.READ);
+                return shape(new FileChannelResponse(status, mimeType, channel, position, length, currentSocket.get(), opened == null));
+            }
+
+            SharedReads shared = sharedReads;
+            boolean sharing = shared != null && position == 0 && status == Response.Status.OK && length > SharedReads.CHUNK_SIZE;
+            BufferPool pool = pool(status, mimeType);
+            if(pool != null && !sharing) {
+                log.debug("Pooled buffer transfer...");
+                FileChannel channel = opened != null ? opened : FileChannel.open(key.path, StandardOpenOption.READ);
+                FileChannelResponse response = new FileChannelResponse(status, mimeType, channel, position, length, currentSocket.get(), opened == null);
+                response.setBufferPool(pool);
+                return shape(response);
+            }
+
+            if(position == 0 && status == Response.Status.OK) {
+                InputStream fis;
+                if(sharing) {
+                    fis = shared.open(key);
+                } else if(opened != null) {
+                    fis = new FileRangeInputStream(opened, 0, length, false);
+                } else {
+                    fis = new FileInputStream(key.path.toFile());
+                }
+                fis = shape(fis);
+                if(length > 1024*64) {
+                    log.debug("Chunking transfer...");
+                    return newChunkedResponse(status, mimeType, fis);
+                }
+                log.debug("Fixed transfer...");
+                return newFixedLengthResponse(status, mimeType, fis, length);
+            }
+
+            FileChannel channel = opened != null ? opened : FileChannel.open(key.path, StandardOpenOption.READ);
+            return newFixedLengthResponse(status, mimeType, shape(new FileRangeInputStream(channel, position, length, opened == null)), length);
+        }
+
+        /**
+         * @return the buffer pool to copy a body with, null if there is none or NanoHTTPD would gzip the response itself
+         */
+        private BufferPool pool(Response.IStatus status, String mimeType) {
+            BufferPool pool = bufferPool;
+            if(pool == null) {
+                return null;
+            }
+            if(gzipVariants == null && status == Response.Status.OK && mimeType != null) {
+                // same check as NanoHTTPD.useGzipWhenAccepted
+                String mime = mimeType.toLowerCase();
+                if(mime.contains("text/") || mime.contains("/json")) {
+                    return null;
+                }
+            }
+            return pool;
+        }
+
+        private BandwidthLimiter.Client shapingClient() {
+            BandwidthLimiter limiter = bandwidthLimiter;
+            Socket socket = currentSocket.get();
+            if(limiter == null || socket == null) {
+                return null;
+            }
+            return limiter.client(socket.getInetAddress().getHostAddress());
+        }
+
+        private InputStream shape(InputStream in) {
+            BandwidthLimiter.Client client = shapingClient();
+            return client == null ? in : new ThrottledInputStream(in, client);
+        }
+
+        private Response shape(ChannelResponse response) {
+            response.setThrottle(shapingClient());
+            return response;
+        }
+
+        private Response newMultipartRangeResponse(FileKey key, ServeTarget served, String mimeType, ByteBuffer cached, List<ByteRange> ranges, long length, String boundary) throws IOException {
+            ServeTarget retained = cached == null && served != null && served.retain() ? served : null;
+            FileChannel channel = cached != null ? null : retained != null ? retained.getChannel() : FileChannel.open(key.path, StandardOpenOption.READ);
+
+            Vector<InputStream> parts = new Vector<>(ranges.size() * 2 + 1);
+            long total = 0;
+            for(ByteRange range : ranges) {
+                byte [] partHeader = range.partHeader(boundary, mimeType, length);
+                parts.add(new ByteArrayInputStream(partHeader));
+                if(cached != null) {
+                    parts.add(new ByteBufferInputStream(ContentCache.slice(cached, range.start, range.length())));
+                } else {
+                    parts.add(new FileRangeInputStream(channel, range.start, range.length(), false));
+                }
+                total += partHeader.length + range.length();
+            }
+            byte [] trailer = ByteRange.multipartTrailer(boundary);
+            parts.add(new ByteArrayInputStream(trailer));
+            total += trailer.length;
+
+            InputStream body = new SequenceInputStream(parts.elements()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if(channel != null && retained == null) {
+                            channel.close();
+                        }
+                    }
+                }
+            };
+
+            Response response = newFixedLengthResponse(Response.Status.PARTIAL_CONTENT, "multipart/byteranges; boundary=" + boundary, shape(body), total);
+            return retained == null ? response : onClose(response, retained::release);
+        }
     }
 
     public static int parsePort(String portString) {
@@ -558,6 +2028,8 @@ public class QuickGet implements Runnable {
     }
 
     public static class ImageScaler extends JPanel {
+        private static final long serialVersionUID = 1L;
+
         private BufferedImage image;
 
         public ImageScaler(BufferedImage image) {
@@ -603,6 +2075,7 @@ public class QuickGet implements Runnable {
     }
 
     public static void main(String...args) {
-        SwingUtilities.invokeLater(new QuickGet());
+        SharedServices services = new SharedServices(message -> SwingUtilities.invokeLater(() -> logShares(message)));
+        SwingUtilities.invokeLater(new QuickGet(services, true, getSetting("port", "QG_PORT", "80")));
     }
 }
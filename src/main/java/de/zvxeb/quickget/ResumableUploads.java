@@ -0,0 +1,249 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resumable uploads in the spirit of tus.
+ *
+ * An upload is created with its length and gets an id. Its content arrives in chunks at
+ * arbitrary offsets, possibly in parallel over several connections, and is written with
+ * positional writes to one shared channel. The received ranges are tracked in an
+ * {@link IntervalSet} and can be queried to resume after a failure; once they cover the
+ * whole length the file gets its final name through the {@link UploadReceiver}.
+ */
+public class ResumableUploads {
+    private static final Logger log = LoggerFactory.getLogger(ResumableUploads.class);
+
+    /**
+     * Request path for creating uploads, uploads live below it
+     */
+    public static final String PATH = "resumable";
+
+    public static final int MAX_ACTIVE = 64;
+    public static final long EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final UploadReceiver receiver;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    ResumableUploads(UploadReceiver receiver) {
+        this.receiver = receiver;
+    }
+
+    public class Upload {
+        private final String id;
+        private final String name;
+        private final long length;
+        private final Path part;
+        private final FileChannel channel;
+        private final IntervalSet received = new IntervalSet();
+        private volatile long lastActivity = System.currentTimeMillis();
+        private File completed = null;
+
+        private Upload(String id, String name, long length) throws IOException {
+            this.id = id;
+            this.name = name;
+            this.length = length;
+            this.part = receiver.createPart();
+            this.channel = FileChannel.open(part, StandardOpenOption.WRITE);
+            // parts of unfinished uploads are of no use after a restart
+            part.toFile().deleteOnExit();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return length of the completely received start of the file
+         */
+        public synchronized long getOffset() {
+            return completed != null ? length : received.contiguousPrefix();
+        }
+
+        /**
+         * @return received ranges, see {@link IntervalSet#toString()}
+         */
+        public synchronized String getReceived() {
+            if(completed != null) {
+                return length > 0 ? "0-" + (length - 1) : "";
+            }
+            return received.toString();
+        }
+
+        /**
+         * @return the stored file once all content was received, null before
+         */
+        public synchronized File getCompleted() {
+            return completed;
+        }
+
+        /**
+         * Writes a chunk of count bytes from the stream at offset. Whatever was written
+         * counts as received, even if the stream breaks off.
+         *
+         * @return the stored file if the upload is complete, null otherwise
+         */
+        public File write(InputStream in, long offset, long count) throws IOException {
+            if(offset < 0 || count < 0 || offset + count > length) {
+                throw new IllegalArgumentException(String.format("Chunk %d+%d outside of upload length %d", offset, count, length));
+            }
+            lastActivity = System.currentTimeMillis();
+            if(getCompleted() != null) {
+                // a repeated chunk whose answer got lost
+                skip(in, count);
+                return getCompleted();
+            }
+
+            byte [] buffer = new byte[(int)Math.min(BUFFER_SIZE, Math.max(1, count))];
+            long position = offset;
+            try {
+                while(position < offset + count) {
+                    int n = in.read(buffer, 0, (int)Math.min(buffer.length, offset + count - position));
+                    if(n < 0) {
+                        throw new EOFException(String.format("Chunk ended after %d of %d bytes", position - offset, count));
+                    }
+                    ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+                    while(bb.hasRemaining()) {
+                        position += channel.write(bb, position);
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    received.add(offset, position);
+                }
+                lastActivity = System.currentTimeMillis();
+            }
+            return completeIfDone();
+        }
+
+        private synchronized File completeIfDone() throws IOException {
+            if(completed == null && received.contains(0, length)) {
+                channel.close();
+                completed = receiver.complete(part, name);
+            }
+            return completed;
+        }
+
+        private synchronized void discard() {
+            try {
+                channel.close();
+                if(completed == null) {
+                    Files.deleteIfExists(part);
+                }
+            } catch (IOException e) {
+                log.debug("Could not discard upload {}", id, e);
+            }
+        }
+    }
+
+    /**
+     * @param name file name suggested by the client
+     * @return the new upload or null if there are too many unfinished uploads
+     */
+    public Upload create(String name, long length) throws IOException {
+        expire();
+        long active = uploads.values().stream().filter(u -> u.getCompleted() == null).count();
+        if(active >= MAX_ACTIVE) {
+            return null;
+        }
+        byte [] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder id = new StringBuilder(32);
+        for(byte b : bytes) {
+            id.append(String.format("%02x", b));
+        }
+        Upload upload = new Upload(id.toString(), name, length);
+        uploads.put(upload.id, upload);
+        log.info("Resumable upload {} of {} ({} bytes)", upload.id, name, length);
+        // nothing will arrive for an empty file
+        upload.completeIfDone();
+        return upload;
+    }
+
+    /**
+     * @return the upload or null if it is unknown (or expired)
+     */
+    public Upload get(String id) {
+        Upload upload = uploads.get(id);
+        if(upload != null) {
+            upload.lastActivity = System.currentTimeMillis();
+        }
+        return upload;
+    }
+
+    public boolean cancel(String id) {
+        Upload upload = uploads.remove(id);
+        if(upload == null) {
+            return false;
+        }
+        upload.discard();
+        log.info("Cancelled upload {} of {}", id, upload.name);
+        return true;
+    }
+
+    private void expire() {
+        long oldest = System.currentTimeMillis() - EXPIRY_MILLIS;
+        for(Iterator<Upload> it = uploads.values().iterator(); it.hasNext(); ) {
+            Upload upload = it.next();
+            if(upload.lastActivity < oldest) {
+                it.remove();
+                upload.discard();
+                log.debug("Expired upload {}", upload.id);
+            }
+        }
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        byte [] buffer = new byte[(int)Math.min(BUFFER_SIZE, Math.max(1, count))];
+        while(count > 0) {
+            int n = in.read(buffer, 0, (int)Math.min(buffer.length, count));
+            if(n < 0) {
+                throw new EOFException();
+            }
+            count -= n;
+        }
+    }
+}
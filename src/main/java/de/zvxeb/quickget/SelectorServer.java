@@ -0,0 +1,1365 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Response.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Non-blocking engine: a few selector loops (one per core) own all connections, the first one also accepts.
+ *
+ * Requests are parsed in place from a per-loop buffer without building header maps, the response
+ * head of a served file is rendered once per file version and head and body leave in a single
+ * gathering write (or head write plus transferTo for uncached content). Shaped and queued
+ * transfers are parked on a timer instead of blocking the loop.
+ *
+ * Only GET, HEAD and OPTIONS are understood; content is always sent straight from the
+ * file channel (or the content cache), there is no stream transfer mode.
+ */
+public class SelectorServer implements FileServer {
+    private static final Logger log = LoggerFactory.getLogger(SelectorServer.class);
+
+    /**
+     * Same limit for the request head as NanoHTTPD
+     */
+    private static final int MAX_REQUEST_HEAD = 8192;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 5000;
+    private static final long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * While draining, connections idle for this long are closed (a request may just be on its way)
+     */
+    private static final long DRAIN_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long ADMISSION_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int MAX_GATHER = 16;
+    private static final int HEAD_CACHE_SIZE = 64;
+    /**
+     * Connection bursts beyond the default backlog of 50 end up in SYN retransmits (1s and more)
+     */
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private static final byte [] KEEP_ALIVE = ascii("Connection: keep-alive\r\n\r\n");
+    private static final byte [] CLOSE = ascii("Connection: close\r\n\r\n");
+
+    private static final byte [] CONNECTION = ascii("connection");
+    private static final byte [] RANGE = ascii("range");
+    private static final byte [] IF_RANGE = ascii("if-range");
+    private static final byte [] IF_NONE_MATCH = ascii("if-none-match");
+    private static final byte [] IF_MODIFIED_SINCE = ascii("if-modified-since");
+    private static final byte [] ACCEPT_ENCODING = ascii("accept-encoding");
+    private static final byte [] CONTENT_LENGTH = ascii("content-length");
+    private static final byte [] TRANSFER_ENCODING = ascii("transfer-encoding");
+
+    private final int port;
+    private final int loopCount;
+
+    private final AtomicReference<ServeTarget> target = new AtomicReference<>();
+    private volatile ContentCache contentCache = null;
+    private volatile LandingPage landingPage = null;
+    private volatile TransferReaper transferReaper = null;
+    // the reaper watching while running
+    private TransferReaper reaper = null;
+    private volatile long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MILLIS);
+    private volatile ContentHasher contentHasher = null;
+    private volatile GzipVariants gzipVariants = null;
+    private volatile BandwidthLimiter bandwidthLimiter = null;
+    private volatile AdmissionControl admissionControl = null;
+
+    private volatile boolean running = false;
+    private volatile boolean draining = false;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final Transfers transfers = new Transfers();
+    private ServerSocketChannel serverChannel;
+    private Loop [] loops;
+
+    /**
+     * Request headers the server cares about, reused by the loop for every request.
+     */
+    private static class Request {
+        String method;
+        String uri;
+        boolean keepAlive;
+        boolean hasBody;
+        String range;
+        String ifRange;
+        String ifNoneMatch;
+        String ifModifiedSince;
+        String acceptEncoding;
+
+        void reset() {
+            method = null;
+            uri = null;
+            keepAlive = false;
+            hasBody = false;
+            range = null;
+            ifRange = null;
+            ifNoneMatch = null;
+            ifModifiedSince = null;
+            acceptEncoding = null;
+        }
+
+        boolean isHead() {
+            return "HEAD".equals(method);
+        }
+    }
+
+    /**
+     * Rendered response heads (without Date and Connection) of one file version.
+     */
+    private static class Head {
+        final String mimeType;
+        final boolean compressible;
+        final String hash;
+        final String etag;
+        final byte [] ok;
+        final byte [] notModified;
+
+        Head(FileKey key, String mimeType, boolean compressible, String hash) {
+            this.mimeType = mimeType;
+            this.compressible = compressible;
+            this.hash = hash;
+            this.etag = HttpConditions.etag(key);
+
+            StringBuilder sb = head(Status.OK, mimeType, key.size);
+            sb.append("Accept-Ranges: bytes\r\n");
+            validators(sb, key, etag, hash, compressible);
+            this.ok = ascii(sb);
+
+            sb = head(Status.NOT_MODIFIED, null, -1);
+            validators(sb, key, etag, hash, compressible);
+            this.notModified = ascii(sb);
+        }
+
+        boolean matches(String mimeType, boolean compressible, String hash) {
+            return this.mimeType.equals(mimeType) && this.compressible == compressible && Objects.equals(this.hash, hash);
+        }
+    }
+
+    /**
+     * Part of a file that still has to be sent.
+     */
+    private static class Region {
+        final FileChannel file;
+        final boolean closeFile;
+        long position;
+        long remaining;
+
+        Region(FileChannel file, long position, long length, boolean closeFile) {
+            this.file = file;
+            this.position = position;
+            this.remaining = length;
+            this.closeFile = closeFile;
+        }
+
+        long transferTo(WritableByteChannel target, long max) throws IOException {
+            long n = file.transferTo(position, Math.min(remaining, max), target);
+            if(n == 0 && position >= file.size()) {
+                throw new EOFException("File was truncated while sending");
+            }
+            position += n;
+            remaining -= n;
+            return n;
+        }
+    }
+
+    public SelectorServer(int port, File fileToServe, String nameToServe, String mimeTypeToServe) {
+        this(port, fileToServe, nameToServe, mimeTypeToServe, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SelectorServer(int port, File fileToServe, String nameToServe, String mimeTypeToServe, int loops) {
+        this.port = port;
+        this.loopCount = Math.max(1, loops);
+        setFile(fileToServe, nameToServe, mimeTypeToServe);
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if(running) {
+            return;
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        Loop [] started = new Loop[loopCount];
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            channel.configureBlocking(false);
+            for(int i=0; i<started.length; i++) {
+                started[i] = new Loop(i);
+            }
+            channel.register(started[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            channel.close();
+            for(Loop loop : started) {
+                if(loop != null) {
+                    loop.selector.close();
+                }
+            }
+            throw e;
+        }
+        serverChannel = channel;
+        loops = started;
+        running = true;
+        for(Loop loop : loops) {
+            loop.thread.start();
+        }
+        reaper = transferReaper;
+        if(reaper != null) {
+            reaper.watch(transfers, port);
+        }
+        log.info("Selector server listening on port {} with {} loops", port, loops.length);
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public synchronized void stopAccepting() {
+        draining = true;
+        if(serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                log.debug("Could not close server channel", e);
+            }
+            serverChannel = null;
+        }
+        if(loops != null) {
+            for(Loop loop : loops) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    @Override
+    public Transfers getTransfers() {
+        return transfers;
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        if(reaper != null) {
+            reaper.unwatch(transfers);
+            reaper = null;
+        }
+        if(serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                log.debug("Could not close server channel", e);
+            }
+            serverChannel = null;
+        }
+        if(loops != null) {
+            for(Loop loop : loops) {
+                loop.selector.wakeup();
+            }
+            for(Loop loop : loops) {
+                try {
+                    loop.thread.join(TimeUnit.SECONDS.toMillis(1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            loops = null;
+        }
+        ServeTarget current = target.get();
+        DirectoryIndex.closeQuietly(current.index);
+        target.set(current.detached());
+        current.release();
+    }
+
+    @Override
+    public synchronized void setFile(File fileToServe, String nameToServe, String mimeTypeToServe) {
+        ServeTarget current = target.get();
+        if(current != null && contentCache != null && !current.file.equals(fileToServe)) {
+            contentCache.invalidate(current.file);
+        }
+        DirectoryIndex index = DirectoryIndex.replace(current == null ? null : current.index, fileToServe);
+        ServeTarget previous = target.getAndSet(ServeTarget.open(fileToServe, nameToServe, mimeTypeToServe, index));
+        if(previous != null) {
+            // responses still reading keep the previous file open
+            previous.release();
+        }
+    }
+
+    @Override
+    public ServeTarget getServeTarget() {
+        return target.get();
+    }
+
+    @Override
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    @Override
+    public void setTransferReaper(TransferReaper transferReaper) {
+        this.transferReaper = transferReaper;
+    }
+
+    @Override
+    public void setLandingPage(LandingPage landingPage) {
+        this.landingPage = landingPage;
+    }
+
+    @Override
+    public void setContentCache(ContentCache contentCache) {
+        this.contentCache = contentCache;
+    }
+
+    @Override
+    public void setContentHasher(ContentHasher contentHasher) {
+        this.contentHasher = contentHasher;
+    }
+
+    @Override
+    public void setGzipVariants(GzipVariants gzipVariants) {
+        this.gzipVariants = gzipVariants;
+    }
+
+    @Override
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    @Override
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    private final class Loop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Connection> timers = new PriorityQueue<>(Comparator.comparingLong(c -> c.wakeAt));
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_REQUEST_HEAD);
+        private final ByteBuffer [] gather = new ByteBuffer[MAX_GATHER];
+        private final Request request = new Request();
+        private final Map<FileKey, Head> heads = new LinkedHashMap<FileKey, Head>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<FileKey, Head> eldest) {
+                return size() > HEAD_CACHE_SIZE;
+            }
+        };
+        private int nextLoop = 0;
+        private long dateSecond = -1;
+        private byte [] dateLine;
+        private long lastSweep = System.nanoTime();
+
+        Loop(int number) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "QuickGet Selector #" + number);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(running) {
+                    selector.select(runTimers());
+                    registerAccepted();
+                    runTasks();
+                    for(Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        handle(key);
+                    }
+                    sweep();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                log.error("Selector loop failed", e);
+            } finally {
+                for(SelectionKey key : selector.keys()) {
+                    if(key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                SocketChannel channel;
+                while((channel = accepted.poll()) != null) {
+                    closeQuietly(channel);
+                }
+                closeQuietly(selector);
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            if(!key.isValid()) {
+                return;
+            }
+            if(key.isAcceptable()) {
+                accept((ServerSocketChannel) key.channel());
+                return;
+            }
+            Connection connection = (Connection) key.attachment();
+            try {
+                if(key.isReadable()) {
+                    connection.onReadable();
+                } else if(key.isWritable()) {
+                    connection.onWritable();
+                }
+            } catch (IOException e) {
+                log.debug("Connection failed", e);
+                connection.close();
+            } catch (RuntimeException e) {
+                log.error("Error serving request", e);
+                connection.close();
+            } finally {
+                // only ever holds data while a request is handled
+                readBuffer.clear();
+            }
+        }
+
+        private void accept(ServerSocketChannel server) {
+            while(true) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (IOException e) {
+                    log.debug("Accept failed", e);
+                    return;
+                }
+                if(channel == null) {
+                    return;
+                }
+                Loop loop = loops[nextLoop++ % loops.length];
+                if(loop == this) {
+                    register(channel);
+                } else {
+                    loop.accepted.add(channel);
+                    loop.selector.wakeup();
+                }
+            }
+        }
+
+        /**
+         * Runs actions other threads handed to the loop.
+         */
+        private void runTasks() {
+            Runnable task;
+            while((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void registerAccepted() {
+            SocketChannel channel;
+            while((channel = accepted.poll()) != null) {
+                register(channel);
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                openConnections.incrementAndGet();
+            } catch (IOException e) {
+                log.debug("Could not register connection", e);
+                closeQuietly(channel);
+            }
+        }
+
+        /**
+         * Wakes parked connections that are due.
+         *
+         * @return milliseconds until the next timer or sweep
+         */
+        private long runTimers() {
+            long now = System.nanoTime();
+            Connection connection;
+            while((connection = timers.peek()) != null && connection.wakeAt - now <= 0) {
+                timers.poll();
+                connection.parked = false;
+                try {
+                    connection.wake();
+                } catch (IOException e) {
+                    log.debug("Connection failed", e);
+                    connection.close();
+                } catch (RuntimeException e) {
+                    log.error("Error serving request", e);
+                    connection.close();
+                }
+            }
+            long next = connection == null ? SWEEP_NANOS : Math.min(SWEEP_NANOS, connection.wakeAt - now);
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next));
+        }
+
+        /**
+         * Closes connections that did not send a request for too long.
+         */
+        private void sweep() {
+            long now = System.nanoTime();
+            if(now - lastSweep < SWEEP_NANOS) {
+                return;
+            }
+            lastSweep = now;
+            long idle = draining ? DRAIN_IDLE_NANOS : idleTimeoutNanos;
+            for(SelectionKey key : selector.keys()) {
+                if(key.attachment() instanceof Connection) {
+                    Connection connection = (Connection) key.attachment();
+                    if(connection.isIdle() && now - connection.lastActivity > idle) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+
+        private byte [] dateLine() {
+            long now = System.currentTimeMillis();
+            if(now / 1000 != dateSecond) {
+                dateSecond = now / 1000;
+                dateLine = ascii("Date: " + Util.formatHttpDate(now) + "\r\n");
+            }
+            return dateLine;
+        }
+
+        private Head head(FileKey key, String mimeType, boolean compressible) {
+            ContentHasher hasher = contentHasher;
+            String hash = hasher == null ? null : hasher.getIfDone(key);
+            Head head = heads.get(key);
+            if(head == null || !head.matches(mimeType, compressible, hash)) {
+                head = new Head(key, mimeType, compressible, hash);
+                heads.put(key, head);
+            }
+            return head;
+        }
+    }
+
+    private final class Connection {
+        private final Loop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        /**
+         * Unparsed request bytes, only allocated if a request does not arrive in one piece (or is pipelined).
+         */
+        private ByteBuffer pending;
+        /**
+         * ByteBuffers and Regions of the current response.
+         */
+        private final ArrayDeque<Object> output = new ArrayDeque<>();
+        private boolean closeAfterResponse;
+
+        private AdmissionControl admission;
+        private AdmissionControl.Ticket ticket;
+        private AdmissionControl.Permit permit;
+        private BandwidthLimiter.Client throttle;
+        private Transfers.Transfer transfer;
+        private ServeTarget retained;
+
+        private boolean parked;
+        private long wakeAt;
+        private long lastActivity = System.nanoTime();
+        private boolean closed;
+
+        Connection(Loop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        boolean isIdle() {
+            return output.isEmpty() && !parked;
+        }
+
+        void onReadable() throws IOException {
+            ByteBuffer buffer = pending != null ? pending : loop.readBuffer;
+            int n = channel.read(buffer);
+            if(n < 0) {
+                close();
+                return;
+            }
+            if(n > 0) {
+                lastActivity = System.nanoTime();
+                serveBuffered(buffer);
+            }
+        }
+
+        void onWritable() throws IOException {
+            if(write()) {
+                next();
+            }
+        }
+
+        void wake() throws IOException {
+            if(ticket != null ? admit() : write()) {
+                next();
+            }
+        }
+
+        /**
+         * Answers all complete requests in the buffer (which is in write mode).
+         */
+        private void serveBuffered(ByteBuffer buffer) throws IOException {
+            while(true) {
+                buffer.flip();
+                // empty lines before a request are allowed
+                while(buffer.hasRemaining() && (buffer.get(buffer.position()) == '\r' || buffer.get(buffer.position()) == '\n')) {
+                    buffer.get();
+                }
+                int end = headEnd(buffer);
+                if(end < 0) {
+                    if(buffer.limit() == buffer.capacity()) {
+                        buffer.clear();
+                        pending = null;
+                        closeAfterResponse = true;
+                        loop.request.reset();
+                        text(Status.BAD_REQUEST, "Request header too large!");
+                        if(write()) {
+                            close();
+                        }
+                        return;
+                    }
+                    keep(buffer);
+                    interest(SelectionKey.OP_READ);
+                    return;
+                }
+
+                Request request = loop.request;
+                boolean valid = parse(buffer, end, request);
+                buffer.position(end);
+                keep(buffer);
+                if(valid) {
+                    respond(request);
+                } else {
+                    closeAfterResponse = true;
+                    text(Status.BAD_REQUEST, "Bad request!");
+                }
+
+                if(!(ticket != null ? admit() : write())) {
+                    return;
+                }
+                if(closeAfterResponse) {
+                    close();
+                    return;
+                }
+                if(pending == null) {
+                    interest(SelectionKey.OP_READ);
+                    return;
+                }
+                buffer = pending;
+            }
+        }
+
+        /**
+         * Continues after a response was written completely.
+         */
+        private void next() throws IOException {
+            if(closeAfterResponse) {
+                close();
+            } else if(pending != null) {
+                serveBuffered(pending);
+            } else {
+                interest(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Keeps the unparsed rest of a buffer in read mode, the loop buffer is cleared for the next connection.
+         */
+        private void keep(ByteBuffer buffer) {
+            if(!buffer.hasRemaining()) {
+                buffer.clear();
+                pending = null;
+            } else if(buffer == loop.readBuffer) {
+                pending = ByteBuffer.allocate(MAX_REQUEST_HEAD);
+                pending.put(buffer);
+                buffer.clear();
+            } else {
+                buffer.compact();
+            }
+        }
+
+        private void respond(Request request) throws IOException {
+            closeAfterResponse = !request.keepAlive || request.hasBody || draining;
+            switch(request.method) {
+                case "GET":
+                case "HEAD":
+                    break;
+                case "OPTIONS":
+                    begin(ascii(head(Status.OK, null, 0)
+                        .append("Allow: ").append(QuickGet.ServerThread.ALLOWED_METHODS).append("\r\n")
+                        .append("Accept-Ranges: bytes\r\n")));
+                    return;
+                default:
+                    text(Status.METHOD_NOT_ALLOWED, "Method not allowed!", "Allow: " + QuickGet.ServerThread.ALLOWED_METHODS);
+                    return;
+            }
+
+            String requestUri = request.uri;
+            if(requestUri.startsWith("/")) {
+                requestUri = requestUri.substring(1);
+            }
+
+            ServeTarget current = target.get();
+            LandingPage landing = landingPage;
+            byte [] page = landing != null && requestUri.equals(LandingPage.PATH) ? landing.render(current) : null;
+            if(page != null) {
+                begin(ascii(head(Status.OK, NanoHTTPD.MIME_HTML + "; charset=utf-8", page.length)));
+                if(!request.isHead()) {
+                    add(ByteBuffer.wrap(page));
+                }
+                return;
+            }
+            if(current.index != null) {
+                if(requestUri.isEmpty()) {
+                    byte [] listing = current.index.getListing();
+                    begin(ascii(head(Status.OK, NanoHTTPD.MIME_HTML + "; charset=utf-8", listing.length)));
+                    if(!request.isHead()) {
+                        add(ByteBuffer.wrap(listing));
+                    }
+                    return;
+                }
+                DirectoryIndex.Entry entry = current.index.lookup(requestUri);
+                if(entry != null) {
+                    serveFile(request, entry.file, entry.mimeType, null);
+                    return;
+                }
+            } else if(current.name.equalsIgnoreCase(requestUri)) {
+                serveFile(request, current.file, current.mimeType, current);
+                return;
+            }
+
+            text(Status.NOT_FOUND, "Not Found");
+        }
+
+        /**
+         * @param served the target if the file is the served single file, its open channel is used while it is current
+         */
+        private void serveFile(Request request, File file, String mimeType, ServeTarget served) {
+            try {
+                serveContent(request, file, mimeType, served);
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                discardOutput();
+                text(Status.NOT_FOUND, "File not found!");
+            } catch (IOException e) {
+                log.error("Error serving file", e);
+                discardOutput();
+                text(Status.INTERNAL_ERROR, "Error reading file!");
+            }
+        }
+
+        private void serveContent(Request request, File file, String mimeType, ServeTarget served) throws IOException {
+            FileKey key = FileKey.of(file);
+            if(key == null) {
+                throw new FileNotFoundException(file.getAbsolutePath());
+            }
+            if(served != null && !served.matches(key)) {
+                // changed on disk since it was selected
+                served = null;
+            }
+            GzipVariants gzip = gzipVariants;
+            boolean compressible = gzip != null && GzipVariants.isCompressible(mimeType, file.getName());
+            if(compressible && HttpConditions.acceptsGzip(request.acceptEncoding) && request.range == null) {
+                File variant = request.isHead() ? gzip.getIfDone(key) : gzip.getIfReady(key);
+                if(variant != null) {
+                    serveGzipVariant(request, key, variant, mimeType);
+                    return;
+                }
+            }
+
+            Head head = loop.head(key, mimeType, compressible);
+            if(HttpConditions.isNotModified(request.ifNoneMatch, request.ifModifiedSince, head.etag, key)) {
+                begin(head.notModified);
+                return;
+            }
+            if(request.isHead()) {
+                begin(head.ok);
+                return;
+            }
+
+            ContentCache cache = contentCache;
+            ByteBuffer cached = cache == null ? null : cache.get(key);
+            long length = cached != null ? cached.remaining() : key.size;
+            List<ByteRange> ranges = HttpConditions.isRangeApplicable(request.ifRange, head.etag, key) ? ByteRange.parse(request.range, length) : null;
+
+            if(ranges == null) {
+                Object body = content(key, served, cached, 0, length);
+                begin(head.ok);
+                add(body);
+            } else if(ranges.isEmpty()) {
+                log.debug("Unsatisfiable range: {}", request.range);
+                text(Status.RANGE_NOT_SATISFIABLE, "Range not satisfiable!", "Content-Range: " + ByteRange.unsatisfiedContentRange(length));
+                return;
+            } else if(ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+                log.debug("Range transfer {}...", range);
+                Object body = content(key, served, cached, range.start, range.length());
+                StringBuilder sb = head(Status.PARTIAL_CONTENT, mimeType, range.length());
+                sb.append("Content-Range: ").append(range.contentRange(length)).append("\r\n");
+                sb.append("Accept-Ranges: bytes\r\n");
+                validators(sb, key, head.etag, head.hash, compressible);
+                begin(ascii(sb));
+                add(body);
+            } else {
+                log.debug("Multipart range transfer {}...", ranges);
+                multipart(served, mimeType, cached, ranges, length, key, head, compressible);
+            }
+            track(file.getName());
+            shape();
+            requireSlot();
+        }
+
+        private void serveGzipVariant(Request request, FileKey key, File variant, String mimeType) throws IOException {
+            String etag = HttpConditions.gzipEtag(key);
+            FileKey variantKey = FileKey.of(variant);
+            if(variantKey == null) {
+                throw new FileNotFoundException(variant.getAbsolutePath());
+            }
+            String hash = contentHasher == null ? null : contentHasher.getIfDone(key);
+
+            if(HttpConditions.isNotModified(request.ifNoneMatch, request.ifModifiedSince, etag, key)) {
+                log.debug("Not modified (gzip)...");
+                StringBuilder sb = head(Status.NOT_MODIFIED, null, -1);
+                sb.append("Content-Encoding: gzip\r\n");
+                validators(sb, key, etag, hash, true);
+                begin(ascii(sb));
+                return;
+            }
+
+            Object body = null;
+            if(!request.isHead()) {
+                log.debug("Gzip variant transfer...");
+                ContentCache cache = contentCache;
+                body = content(variantKey, null, cache == null ? null : cache.get(variantKey), 0, variantKey.size);
+            }
+            StringBuilder sb = head(Status.OK, mimeType, variantKey.size);
+            sb.append("Content-Encoding: gzip\r\n");
+            validators(sb, key, etag, hash, true);
+            begin(ascii(sb));
+            if(body != null) {
+                add(body);
+                track(key.path.getFileName().toString());
+                shape();
+                requireSlot();
+            }
+        }
+
+        /**
+         * @return a ByteBuffer for cached content or a Region of the opened file
+         */
+        private Object content(FileKey key, ServeTarget served, ByteBuffer cached, long position, long length) throws IOException {
+            if(cached != null) {
+                log.debug("Cached transfer...");
+                return ContentCache.slice(cached, position, length);
+            }
+            log.debug("Sendfile transfer...");
+            if(retain(served)) {
+                return new Region(served.getChannel(), position, length, false);
+            }
+            return new Region(FileChannel.open(key.path, StandardOpenOption.READ), position, length, true);
+        }
+
+        /**
+         * Keeps the channel of the target open until the response is done.
+         *
+         * @return false if there is no target or it was closed in the meantime
+         */
+        private boolean retain(ServeTarget served) {
+            if(served == null || retained != null) {
+                return served != null && retained == served;
+            }
+            if(!served.retain()) {
+                return false;
+            }
+            retained = served;
+            return true;
+        }
+
+        private void releaseTarget() {
+            if(retained != null) {
+                retained.release();
+                retained = null;
+            }
+        }
+
+        private void multipart(ServeTarget served, String mimeType, ByteBuffer cached, List<ByteRange> ranges, long length, FileKey key, Head head, boolean compressible) throws IOException {
+            String boundary = ByteRange.multipartBoundary(length);
+            boolean shared = cached == null && retain(served);
+            FileChannel channel = cached != null ? null : shared ? served.getChannel() : FileChannel.open(key.path, StandardOpenOption.READ);
+
+            List<Object> parts = new ArrayList<>(ranges.size() * 2 + 1);
+            long total = 0;
+            for(int i=0; i<ranges.size(); i++) {
+                ByteRange range = ranges.get(i);
+                byte [] partHeader = range.partHeader(boundary, mimeType, length);
+                parts.add(ByteBuffer.wrap(partHeader));
+                if(cached != null) {
+                    parts.add(ContentCache.slice(cached, range.start, range.length()));
+                } else {
+                    // the last region closes the channel opened for the response
+                    parts.add(new Region(channel, range.start, range.length(), !shared && i == ranges.size() - 1));
+                }
+                total += partHeader.length + range.length();
+            }
+            byte [] trailer = ByteRange.multipartTrailer(boundary);
+            parts.add(ByteBuffer.wrap(trailer));
+            total += trailer.length;
+
+            StringBuilder sb = head(Status.PARTIAL_CONTENT, "multipart/byteranges; boundary=" + boundary, total);
+            sb.append("Accept-Ranges: bytes\r\n");
+            validators(sb, key, head.etag, head.hash, compressible);
+            begin(ascii(sb));
+            for(Object part : parts) {
+                add(part);
+            }
+        }
+
+        private void text(Status status, String message, String... headers) {
+            byte [] content = message.getBytes(StandardCharsets.UTF_8);
+            StringBuilder sb = head(status, NanoHTTPD.MIME_PLAINTEXT, content.length);
+            for(String header : headers) {
+                sb.append(header).append("\r\n");
+            }
+            begin(ascii(sb));
+            if(!loop.request.isHead()) {
+                add(ByteBuffer.wrap(content));
+            }
+        }
+
+        private void begin(byte [] head) {
+            add(ByteBuffer.wrap(head));
+            add(ByteBuffer.wrap(loop.dateLine()));
+            add(ByteBuffer.wrap(closeAfterResponse ? CLOSE : KEEP_ALIVE));
+        }
+
+        private void add(Object segment) {
+            if(segment instanceof ByteBuffer ? ((ByteBuffer) segment).hasRemaining() : ((Region) segment).remaining > 0) {
+                output.addLast(segment);
+            } else if(segment instanceof Region && ((Region) segment).closeFile) {
+                closeQuietly(((Region) segment).file);
+            }
+        }
+
+        private void discardOutput() {
+            for(Object segment : output) {
+                // the shared channel of the serve target is only released with it
+                if(segment instanceof Region && ((Region) segment).closeFile) {
+                    closeQuietly(((Region) segment).file);
+                }
+            }
+            output.clear();
+            releaseTarget();
+        }
+
+        private String address() {
+            try {
+                return ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+            } catch (IOException | RuntimeException e) {
+                return "";
+            }
+        }
+
+        /**
+         * Registers the queued response as transfer, its length includes the head.
+         */
+        private void track(String name) {
+            long length = 0;
+            for(Object segment : output) {
+                length += segment instanceof ByteBuffer ? ((ByteBuffer) segment).remaining() : ((Region) segment).remaining;
+            }
+            Transfers.Transfer tracked = transfers.begin(address(), name, length);
+            tracked.setAbort(() -> {
+                loop.tasks.add(() -> {
+                    if(transfer == tracked) {
+                        close();
+                    }
+                });
+                loop.selector.wakeup();
+            });
+            transfer = tracked;
+        }
+
+        private void endTransfer() {
+            if(transfer != null) {
+                transfers.end(transfer);
+                transfer = null;
+            }
+        }
+
+        private void shape() {
+            BandwidthLimiter limiter = bandwidthLimiter;
+            throttle = limiter == null ? null : limiter.client(address());
+        }
+
+        /**
+         * Gets in line for a transfer slot, the response is held back until {@link #admit()} succeeds.
+         */
+        private void requireSlot() {
+            AdmissionControl control = admissionControl;
+            if(control == null) {
+                return;
+            }
+            AdmissionControl.Ticket next = control.enqueue();
+            if(next == null) {
+                reject(control);
+                return;
+            }
+            admission = control;
+            ticket = next;
+        }
+
+        private void reject(AdmissionControl control) {
+            log.info("Too many transfers, rejecting {}", address());
+            discardOutput();
+            throttle = null;
+            endTransfer();
+            text(Status.SERVICE_UNAVAILABLE, "Too many transfers, please retry later!", "Retry-After: " + control.getRetryAfterSeconds());
+        }
+
+        /**
+         * @return true if the response was written completely
+         */
+        private boolean admit() throws IOException {
+            AdmissionControl.Permit granted = admission.poll(ticket);
+            if(granted != null) {
+                ticket = null;
+                permit = granted;
+                return write();
+            }
+            if(ticket.isExpired()) {
+                admission.cancel(ticket);
+                ticket = null;
+                reject(admission);
+                return write();
+            }
+            park(System.nanoTime() + ADMISSION_POLL_NANOS);
+            return false;
+        }
+
+        /**
+         * @return true if the response was written completely
+         */
+        private boolean write() throws IOException {
+            if(flush()) {
+                finish();
+                return true;
+            }
+            if(!parked) {
+                interest(SelectionKey.OP_WRITE);
+            }
+            return false;
+        }
+
+        private boolean flush() throws IOException {
+            while(!output.isEmpty()) {
+                BandwidthLimiter.Client client = throttle;
+                long budget = client == null ? Long.MAX_VALUE : client.chunkSize();
+                long written;
+                Object segment = output.peekFirst();
+                if(segment instanceof Region) {
+                    Region region = (Region) segment;
+                    written = region.transferTo(channel, budget);
+                    if(region.remaining == 0) {
+                        output.removeFirst();
+                        if(region.closeFile) {
+                            region.file.close();
+                        }
+                    }
+                } else {
+                    written = writeBuffers(budget);
+                }
+                if(written == 0) {
+                    return false;
+                }
+                lastActivity = System.nanoTime();
+                if(transfer != null) {
+                    transfer.add(written);
+                }
+                if(client != null) {
+                    long wait = client.reserve(written);
+                    if(wait > 0) {
+                        park(System.nanoTime() + wait);
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Writes the buffers at the head of the output, all at once unless shaped.
+         */
+        private long writeBuffers(long budget) throws IOException {
+            ByteBuffer [] gather = loop.gather;
+            long written;
+            if(budget == Long.MAX_VALUE) {
+                int n = 0;
+                for(Object segment : output) {
+                    if(!(segment instanceof ByteBuffer) || n == gather.length) {
+                        break;
+                    }
+                    gather[n++] = (ByteBuffer) segment;
+                }
+                written = channel.write(gather, 0, n);
+                Arrays.fill(gather, 0, n, null);
+            } else {
+                ByteBuffer first = (ByteBuffer) output.peekFirst();
+                int limit = first.limit();
+                first.limit((int)Math.min(limit, first.position() + budget));
+                try {
+                    written = channel.write(first);
+                } finally {
+                    first.limit(limit);
+                }
+            }
+            while(output.peekFirst() instanceof ByteBuffer && !((ByteBuffer) output.peekFirst()).hasRemaining()) {
+                output.removeFirst();
+            }
+            return written;
+        }
+
+        /**
+         * Response is done (sent or discarded).
+         */
+        private void finish() {
+            if(permit != null) {
+                permit.release();
+                permit = null;
+            }
+            throttle = null;
+            admission = null;
+            endTransfer();
+            releaseTarget();
+            lastActivity = System.nanoTime();
+        }
+
+        private void park(long until) {
+            wakeAt = until;
+            parked = true;
+            interest(0);
+            loop.timers.add(this);
+        }
+
+        private void interest(int ops) {
+            if(key.isValid()) {
+                key.interestOps(ops);
+            }
+        }
+
+        void close() {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            openConnections.decrementAndGet();
+            endTransfer();
+            if(ticket != null) {
+                admission.cancel(ticket);
+                ticket = null;
+            }
+            if(parked) {
+                loop.timers.remove(this);
+                parked = false;
+            }
+            discardOutput();
+            finish();
+            pending = null;
+            key.cancel();
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * @return the index after the empty line ending the request head or -1 if it is incomplete
+     */
+    private static int headEnd(ByteBuffer buffer) {
+        int lineStart = buffer.position();
+        for(int i=lineStart; i<buffer.limit(); i++) {
+            if(buffer.get(i) == '\n') {
+                int length = i - lineStart;
+                if(length == 0 || length == 1 && buffer.get(lineStart) == '\r') {
+                    return i + 1;
+                }
+                lineStart = i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the request head between the buffer position and end.
+     *
+     * @return false if the request is malformed
+     */
+    private static boolean parse(ByteBuffer buffer, int end, Request request) {
+        request.reset();
+        int lineEnd = indexOf(buffer, '\n', buffer.position(), end);
+        String [] requestLine = string(buffer, buffer.position(), trimCr(buffer, buffer.position(), lineEnd)).split(" ");
+        if(requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) {
+            return false;
+        }
+        request.method = requestLine[0];
+        request.keepAlive = requestLine[2].equals("HTTP/1.1");
+
+        String uri = requestLine[1];
+        int query = uri.indexOf('?');
+        if(query >= 0) {
+            uri = uri.substring(0, query);
+        }
+        try {
+            request.uri = URLDecoder.decode(uri, "UTF-8");
+        } catch (IOException | IllegalArgumentException e) {
+            return false;
+        }
+
+        for(int start = lineEnd + 1; start < end; ) {
+            int newline = indexOf(buffer, '\n', start, end);
+            int stop = trimCr(buffer, start, newline);
+            if(stop > start) {
+                int colon = indexOf(buffer, ':', start, stop);
+                if(colon < 0) {
+                    return false;
+                }
+                if(nameEquals(buffer, start, colon, RANGE)) {
+                    request.range = value(buffer, colon + 1, stop);
+                } else if(nameEquals(buffer, start, colon, IF_RANGE)) {
+                    request.ifRange = value(buffer, colon + 1, stop);
+                } else if(nameEquals(buffer, start, colon, IF_NONE_MATCH)) {
+                    request.ifNoneMatch = value(buffer, colon + 1, stop);
+                } else if(nameEquals(buffer, start, colon, IF_MODIFIED_SINCE)) {
+                    request.ifModifiedSince = value(buffer, colon + 1, stop);
+                } else if(nameEquals(buffer, start, colon, ACCEPT_ENCODING)) {
+                    request.acceptEncoding = value(buffer, colon + 1, stop);
+                } else if(nameEquals(buffer, start, colon, CONNECTION)) {
+                    String connection = value(buffer, colon + 1, stop).toLowerCase(Locale.ROOT);
+                    if(connection.contains("close")) {
+                        request.keepAlive = false;
+                    } else if(connection.contains("keep-alive")) {
+                        request.keepAlive = true;
+                    }
+                } else if(nameEquals(buffer, start, colon, CONTENT_LENGTH)) {
+                    request.hasBody |= !value(buffer, colon + 1, stop).equals("0");
+                } else if(nameEquals(buffer, start, colon, TRANSFER_ENCODING)) {
+                    request.hasBody = true;
+                }
+            }
+            start = newline + 1;
+        }
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer buffer, char c, int from, int to) {
+        for(int i=from; i<to; i++) {
+            if(buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static int trimCr(ByteBuffer buffer, int from, int to) {
+        return to > from && buffer.get(to - 1) == '\r' ? to - 1 : to;
+    }
+
+    private static boolean nameEquals(ByteBuffer buffer, int from, int to, byte [] lowerCaseName) {
+        if(to - from != lowerCaseName.length) {
+            return false;
+        }
+        for(int i=0; i<lowerCaseName.length; i++) {
+            byte b = buffer.get(from + i);
+            if(b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if(b != lowerCaseName[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String value(ByteBuffer buffer, int from, int to) {
+        while(from < to && (buffer.get(from) == ' ' || buffer.get(from) == '\t')) {
+            from++;
+        }
+        while(to > from && (buffer.get(to - 1) == ' ' || buffer.get(to - 1) == '\t')) {
+            to--;
+        }
+        return string(buffer, from, to);
+    }
+
+    private static String string(ByteBuffer buffer, int from, int to) {
+        return new String(buffer.array(), buffer.arrayOffset() + from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Status line, Content-Type (unless null) and Content-Length (unless negative).
+     */
+    private static StringBuilder head(Status status, String mimeType, long length) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("HTTP/1.1 ").append(status.getDescription()).append("\r\n");
+        if(mimeType != null) {
+            sb.append("Content-Type: ").append(mimeType).append("\r\n");
+        }
+        if(length >= 0) {
+            sb.append("Content-Length: ").append(length).append("\r\n");
+        }
+        return sb;
+    }
+
+    private static void validators(StringBuilder sb, FileKey key, String etag, String hash, boolean compressible) {
+        sb.append("ETag: ").append(etag).append("\r\n");
+        sb.append("Last-Modified: ").append(Util.formatHttpDate(key.modified)).append("\r\n");
+        if(hash != null) {
+            sb.append(QuickGet.ServerThread.CHECKSUM_HEADER).append(": ").append(hash).append("\r\n");
+        }
+        if(compressible) {
+            sb.append("Vary: Accept-Encoding\r\n");
+        }
+    }
+
+    private static byte [] ascii(CharSequence s) {
+        return s.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            log.debug("Could not close {}", closeable, e);
+        }
+    }
+}
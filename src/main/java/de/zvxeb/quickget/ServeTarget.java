@@ -0,0 +1,176 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable description of what a server publishes. Servers swap the whole target
+ * at once, so a request always sees a file with its own name and MIME type.
+ *
+ * A single file is opened when the target is created and its validators are computed
+ * once. Requests {@link #retain()} the target while they read from its channel, the
+ * channel is closed when the last of them and the server have released it, so
+ * transfers started before a swap keep reading the file they began with.
+ */
+public final class ServeTarget {
+    private static final Logger log = LoggerFactory.getLogger(ServeTarget.class);
+
+    public final File file;
+    public final String name;
+    public final String mimeType;
+    /**
+     * Index of a served directory, null for a single file
+     */
+    public final DirectoryIndex index;
+    /**
+     * Content still being produced, served instead of the file, null for files and directories
+     */
+    public final LiveSource live;
+    /**
+     * Version of the file the channel was opened for, null for directories or unreadable files
+     */
+    public final FileKey key;
+    public final String etag;
+    public final String lastModified;
+
+    private final FileChannel channel;
+    // the server holds the first reference
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private ServeTarget(File file, String name, String mimeType, DirectoryIndex index, LiveSource live, FileKey key, FileChannel channel) {
+        this.file = file;
+        this.name = name;
+        this.mimeType = mimeType;
+        this.index = index;
+        this.live = live;
+        this.key = channel == null ? null : key;
+        this.channel = channel;
+        this.etag = this.key == null ? null : HttpConditions.etag(this.key);
+        this.lastModified = this.key == null ? null : Util.formatHttpDate(this.key.modified);
+    }
+
+    /**
+     * Creates the target for a file (which is opened) or a directory.
+     *
+     * @param name defaults to the file name
+     * @param mimeType defaults to {@link QuickGet#MIME_OCTET_STREAM}
+     */
+    public static ServeTarget open(File file, String name, String mimeType, DirectoryIndex index) {
+        FileKey key = null;
+        FileChannel channel = null;
+        if(index == null) {
+            try {
+                key = FileKey.of(file);
+                if(key != null) {
+                    channel = FileChannel.open(key.path, StandardOpenOption.READ);
+                }
+            } catch (IOException e) {
+                // requests will report the file as missing
+                log.warn("Could not open {}", file.getAbsolutePath(), e);
+            }
+        }
+        return new ServeTarget(
+            file,
+            name == null ? file.getName() : name,
+            mimeType == null ? QuickGet.MIME_OCTET_STREAM : mimeType,
+            index,
+            null,
+            key,
+            channel
+        );
+    }
+
+    /**
+     * Creates the target for content that is still being produced, nothing is opened in advance.
+     */
+    public static ServeTarget live(LiveSource source, String name, String mimeType) {
+        return new ServeTarget(
+            source.getFile(),
+            name == null ? source.getFile().getName() : name,
+            mimeType == null ? QuickGet.MIME_OCTET_STREAM : mimeType,
+            null,
+            source,
+            null,
+            null
+        );
+    }
+
+    /**
+     * @return a target for the same file without an index or open channel, for stopped servers
+     */
+    public ServeTarget detached() {
+        return new ServeTarget(file, name, mimeType, null, null, null, null);
+    }
+
+    /**
+     * @return true if the file is still in the state it had when the target was created,
+     * so the channel and validators of the target apply
+     */
+    public boolean matches(FileKey current) {
+        return key != null && key.equals(current);
+    }
+
+    /**
+     * Keeps the channel open until {@link #release()}.
+     *
+     * @return false if the target was already closed (it has been replaced in the meantime)
+     */
+    public boolean retain() {
+        while(true) {
+            int count = references.get();
+            if(count == 0) {
+                return false;
+            }
+            if(references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        if(references.decrementAndGet() == 0 && channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Could not close {}", file, e);
+            }
+        }
+    }
+
+    /**
+     * Only valid while the target is retained.
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public String toString() {
+        if(index != null) {
+            return String.format("directory %s (%d files)", file.getName(), index.size());
+        }
+        return String.format("%s%s as %s (%s)", live != null ? "live " : "", file.getName(), name, mimeType);
+    }
+}
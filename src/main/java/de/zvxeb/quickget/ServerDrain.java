@@ -0,0 +1,113 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Stops a server without cutting off running transfers: the listening socket is closed right
+ * away, the server itself once its last connection is gone or the deadline has passed.
+ * Running transfers are reported every few seconds and when the deadline cuts them off.
+ */
+public class ServerDrain implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(ServerDrain.class);
+
+    public static final long DEFAULT_TIMEOUT_SECONDS = 300;
+
+    private static final long POLL_MILLIS = 250;
+    private static final long REPORT_MILLIS = 5000;
+
+    private final FileServer server;
+    private final long timeoutMillis;
+    private final Consumer<String> progress;
+
+    private ServerDrain(FileServer server, long timeoutMillis, Consumer<String> progress) {
+        this.server = server;
+        this.timeoutMillis = timeoutMillis;
+        this.progress = progress;
+    }
+
+    /**
+     * Stops accepting connections and drains the server in the background.
+     *
+     * @param progress receives messages about the drain, called from the drain thread
+     */
+    public static Thread start(FileServer server, long timeoutMillis, Consumer<String> progress) {
+        server.stopAccepting();
+        Thread thread = new Thread(new ServerDrain(server, timeoutMillis, progress), "QuickGet Drain :" + server.getPort());
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long nextReport = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REPORT_MILLIS);
+        int open;
+        try {
+            while((open = server.getOpenConnections()) > 0 && System.nanoTime() - deadline < 0) {
+                if(System.nanoTime() - nextReport >= 0) {
+                    reportTransfers(String.format("Draining port %d, %%d transfers left", server.getPort()));
+                    nextReport += TimeUnit.MILLISECONDS.toNanos(REPORT_MILLIS);
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            open = server.getOpenConnections();
+        }
+        if(open > 0) {
+            reportTransfers(String.format("Deadline reached on port %d, cutting off %%d transfers", server.getPort()));
+        }
+        server.stop();
+        if(open > 0) {
+            report(String.format("Stopped server on port %d, %d connections were still open", server.getPort(), open));
+        } else {
+            report(String.format("Stopped server on port %d after its last transfer", server.getPort()));
+        }
+    }
+
+    /**
+     * @param headline format for the number of running transfers
+     */
+    private void reportTransfers(String headline) {
+        Transfers transfers = server.getTransfers();
+        List<Transfers.Transfer> running = transfers == null ? Collections.emptyList() : transfers.list();
+        if(running.isEmpty()) {
+            return;
+        }
+        report(String.format(headline, running.size()));
+        for(Transfers.Transfer transfer : running) {
+            report("  " + transfer);
+        }
+    }
+
+    private void report(String message) {
+        if(progress != null) {
+            progress.accept(message);
+        } else {
+            log.info(message);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.io.File;
+
+/**
+ * Available HTTP server implementations.
+ */
+public enum ServerEngine {
+    /**
+     * NanoHTTPD with a thread per connection, supports all transfer modes.
+     */
+    NANOHTTPD,
+    /**
+     * Non-blocking selector loops (one per core) with precomputed headers and gathering writes.
+     */
+    SELECTOR;
+
+    public FileServer create(int port, File fileToServe, String nameToServe, String mimeTypeToServe) {
+        if(this == SELECTOR) {
+            return new SelectorServer(port, fileToServe, nameToServe, mimeTypeToServe);
+        }
+        return new QuickGet.ServerThread(port, fileToServe, nameToServe, mimeTypeToServe);
+    }
+
+    public static ServerEngine fromSetting(String setting) {
+        for(ServerEngine engine : values()) {
+            if(engine.name().equalsIgnoreCase(setting)) {
+                return engine;
+            }
+        }
+        return NANOHTTPD;
+    }
+}
@@ -0,0 +1,344 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets concurrent downloads of the same file share one sequential read.
+ *
+ * The first reader of a file starts a broadcast: chunks are read from disk once into a ring
+ * of pooled buffers and every reader copies them from there. Readers arriving while the start
+ * of the file is still in the ring join in, later ones start a new broadcast. The reader that
+ * needs the next chunk first loads it, so no extra thread is involved.
+ *
+ * Loading replaces the oldest chunk of the ring. Readers that still need it get a moment to
+ * catch up, but each one may hold back the group for {@link #STALL_BUDGET_MILLIS} in total.
+ * After that the chunk is replaced and the slow reader continues with its own reads.
+ */
+public class SharedReads {
+    private static final Logger log = LoggerFactory.getLogger(SharedReads.class);
+
+    public static final int CHUNK_SIZE = 256 * 1024;
+    public static final int RING_CHUNKS = 16;
+    public static final long STALL_BUDGET_MILLIS = 2000;
+
+    /**
+     * Upper limit for idle chunk buffers kept for the next broadcast.
+     */
+    private static final int MAX_POOLED = 4 * RING_CHUNKS;
+
+    private final Map<FileKey, Broadcast> broadcasts = new HashMap<>();
+    private final ArrayDeque<byte[]> pool = new ArrayDeque<>();
+
+    /**
+     * @return a stream of the whole file, shared with other readers if possible
+     */
+    public InputStream open(FileKey key) throws IOException {
+        synchronized (broadcasts) {
+            Broadcast broadcast = broadcasts.get(key);
+            Reader reader = broadcast == null ? null : broadcast.join();
+            if(reader == null) {
+                broadcast = new Broadcast(key, FileChannel.open(key.path, StandardOpenOption.READ));
+                broadcasts.put(key, broadcast);
+                reader = broadcast.join();
+            }
+            return reader;
+        }
+    }
+
+    private byte [] borrow() {
+        synchronized (pool) {
+            byte [] buffer = pool.poll();
+            return buffer != null ? buffer : new byte[CHUNK_SIZE];
+        }
+    }
+
+    private void giveBack(byte [] buffer) {
+        synchronized (pool) {
+            if(pool.size() < MAX_POOLED) {
+                pool.push(buffer);
+            }
+        }
+    }
+
+    private class Broadcast {
+        final FileKey key;
+        final FileChannel channel;
+        final byte [][] slots = new byte[RING_CHUNKS][];
+        final long [] slotChunk = new long[RING_CHUNKS];
+        final int [] slotLength = new int[RING_CHUNKS];
+        final List<Reader> readers = new ArrayList<>();
+
+        /**
+         * Index of the next chunk to load; chunk nextChunk - 1 is being loaded while loading is set.
+         */
+        long nextChunk = 0;
+        boolean loading = false;
+        int joined = 0;
+        int fellBehind = 0;
+        long read = 0;
+        long served = 0;
+
+        Broadcast(FileKey key, FileChannel channel) {
+            this.key = key;
+            this.channel = channel;
+            Arrays.fill(slotChunk, -1);
+        }
+
+        /**
+         * @return the new reader or null if the start of the file has left the ring (or the broadcast is over)
+         */
+        synchronized Reader join() {
+            if(nextChunk > RING_CHUNKS || joined > 0 && readers.isEmpty()) {
+                return null;
+            }
+            Reader reader = new Reader(this);
+            readers.add(reader);
+            joined++;
+            return reader;
+        }
+
+        /**
+         * Called without holding the broadcast lock (the map is locked before broadcasts).
+         */
+        void leave(Reader reader, boolean behind) {
+            synchronized (this) {
+                readers.remove(reader);
+                if(behind) {
+                    fellBehind++;
+                }
+                notifyAll();
+                if(!readers.isEmpty()) {
+                    return;
+                }
+            }
+            // nobody can join anymore
+            synchronized (broadcasts) {
+                broadcasts.remove(key, this);
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Could not close {}", key.path, e);
+            }
+            for(int i = 0; i < slots.length; i++) {
+                if(slots[i] != null) {
+                    giveBack(slots[i]);
+                    slots[i] = null;
+                }
+            }
+            log.info("Shared read of {}: {} readers ({} fell behind), {} bytes read for {} served",
+                key.path.getFileName(), joined, fellBehind, read, served);
+        }
+
+        /**
+         * @return how long to wait for readers still needing content before position,
+         * 0 if there are none (or they used up their budget)
+         */
+        long waitForLaggards(long position) {
+            long wait = 0;
+            for(Reader reader : readers) {
+                if(reader.position < position && reader.stalledMillis < STALL_BUDGET_MILLIS) {
+                    long remaining = STALL_BUDGET_MILLIS - reader.stalledMillis;
+                    wait = wait == 0 ? remaining : Math.min(wait, remaining);
+                }
+            }
+            return wait;
+        }
+
+        void chargeLaggards(long position, long millis) {
+            for(Reader reader : readers) {
+                if(reader.position < position) {
+                    reader.stalledMillis += millis;
+                }
+            }
+        }
+    }
+
+    private class Reader extends InputStream {
+        private final Broadcast broadcast;
+        private final long length;
+        private long position = 0;
+        private long stalledMillis = 0;
+        private InputStream own = null;
+        private boolean closed = false;
+
+        Reader(Broadcast broadcast) {
+            this.broadcast = broadcast;
+            this.length = broadcast.key.size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte [] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n <= 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(own != null) {
+                return own.read(b, off, len);
+            }
+            if(len == 0) {
+                return 0;
+            }
+            if(closed || position >= length) {
+                return -1;
+            }
+            long chunk = position / CHUNK_SIZE;
+            int slot = (int)(chunk % RING_CHUNKS);
+            byte [] buffer = null;
+            synchronized (broadcast) {
+                try {
+                    while(true) {
+                        if(broadcast.slotChunk[slot] == chunk) {
+                            return copy(slot, chunk, b, off, len);
+                        }
+                        if(chunk < broadcast.nextChunk - 1 || chunk == broadcast.nextChunk - 1 && !broadcast.loading) {
+                            // replaced while this reader was away
+                            break;
+                        }
+                        if(chunk == broadcast.nextChunk && !broadcast.loading) {
+                            long oldest = (chunk - RING_CHUNKS + 1) * CHUNK_SIZE;
+                            long wait = broadcast.waitForLaggards(oldest);
+                            if(wait == 0) {
+                                buffer = startLoading(slot);
+                                break;
+                            }
+                            long start = System.nanoTime();
+                            broadcast.wait(wait);
+                            broadcast.chargeLaggards(oldest, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        } else {
+                            broadcast.wait();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for shared read", e);
+                }
+            }
+            if(buffer == null) {
+                return fallBehind(b, off, len);
+            }
+            load(slot, chunk, buffer);
+            return read(b, off, len);
+        }
+
+        /**
+         * Copies from a loaded chunk, called with the broadcast lock held.
+         */
+        private int copy(int slot, long chunk, byte[] b, int off, int len) {
+            int offset = (int)(position - chunk * CHUNK_SIZE);
+            int n = Math.min(len, broadcast.slotLength[slot] - offset);
+            if(n <= 0) {
+                // file got shorter than announced
+                return -1;
+            }
+            System.arraycopy(broadcast.slots[slot], offset, b, off, n);
+            position += n;
+            broadcast.served += n;
+            if(offset + n == broadcast.slotLength[slot]) {
+                // a loader may be waiting for this chunk to be done with
+                broadcast.notifyAll();
+            }
+            return n;
+        }
+
+        /**
+         * Claims the slot for the next chunk, called with the broadcast lock held.
+         */
+        private byte [] startLoading(int slot) {
+            broadcast.slotChunk[slot] = -1;
+            if(broadcast.slots[slot] == null) {
+                broadcast.slots[slot] = borrow();
+            }
+            broadcast.loading = true;
+            broadcast.nextChunk++;
+            return broadcast.slots[slot];
+        }
+
+        private void load(int slot, long chunk, byte [] buffer) throws IOException {
+            int loaded = -1;
+            try {
+                ByteBuffer bb = ByteBuffer.wrap(buffer);
+                long start = chunk * CHUNK_SIZE;
+                while(bb.hasRemaining() && start + bb.position() < length) {
+                    if(broadcast.channel.read(bb, start + bb.position()) < 0) {
+                        break;
+                    }
+                }
+                loaded = bb.position();
+            } finally {
+                synchronized (broadcast) {
+                    if(loaded >= 0) {
+                        broadcast.slotChunk[slot] = chunk;
+                        broadcast.slotLength[slot] = loaded;
+                        broadcast.read += loaded;
+                    } else {
+                        // failed, the next reader tries again
+                        broadcast.nextChunk = chunk;
+                    }
+                    broadcast.loading = false;
+                    broadcast.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Continues with an own channel from the current position.
+         */
+        private int fallBehind(byte[] b, int off, int len) throws IOException {
+            log.debug("Reader of {} fell behind at {}", broadcast.key.path, position);
+            closed = true;
+            broadcast.leave(this, true);
+            FileChannel channel = FileChannel.open(broadcast.key.path, StandardOpenOption.READ);
+            own = new FileRangeInputStream(channel, position, length - position, true);
+            return own.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return own != null ? 0 : (int)Math.min(Integer.MAX_VALUE, length - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(own != null) {
+                own.close();
+            } else if(!closed) {
+                closed = true;
+                broadcast.leave(this, false);
+            }
+        }
+    }
+}
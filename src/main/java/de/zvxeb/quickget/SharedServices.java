@@ -0,0 +1,144 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static de.zvxeb.quickget.QuickGet.emptyString;
+import static de.zvxeb.quickget.QuickGet.getSetting;
+import static de.zvxeb.quickget.QuickGet.parseInt;
+import static de.zvxeb.quickget.QuickGet.parseLong;
+
+/**
+ * Services shared by all shares of the process, created once from the settings.
+ *
+ * Every share has its own port, content and code, but the servers run their clients on one
+ * worker executor, copy through one buffer pool, cache content in one memory budget and are
+ * limited and reaped together. Adding a share costs its listening socket and accept thread.
+ */
+public class SharedServices {
+    private static final Logger log = LoggerFactory.getLogger(SharedServices.class);
+
+    public final ContentCache contentCache = createContentCache();
+    public final GzipVariants gzipVariants = createGzipVariants();
+    public final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(
+        parseLong(getSetting("maxBps", "QG_MAX_BPS", ""), 0),
+        parseLong(getSetting("clientBps", "QG_CLIENT_BPS", ""), 0)
+    );
+    public final AdmissionControl admissionControl = new AdmissionControl(
+        parseInt(getSetting("maxTransfers", "QG_MAX_TRANSFERS", ""), 0),
+        parseInt(getSetting("queue", "QG_QUEUE", ""), AdmissionControl.DEFAULT_QUEUE)
+    );
+    public final ExecutorService workerExecutor = WorkerAsyncRunner.newExecutor(
+        Boolean.parseBoolean(getSetting("virtualThreads", "QG_VIRTUAL_THREADS", "true")),
+        parseInt(getSetting("workers", "QG_WORKERS", ""), WorkerAsyncRunner.DEFAULT_PLATFORM_THREADS)
+    );
+    public final UploadReceiver uploadReceiver = createUploadReceiver();
+    public final ContentHasher contentHasher = Boolean.parseBoolean(getSetting("checksum", "QG_CHECKSUM", "false")) ? new ContentHasher(Runtime.getRuntime().availableProcessors()) : null;
+    public final SharedReads sharedReads = Boolean.parseBoolean(getSetting("fanout", "QG_FANOUT", "false")) ? new SharedReads() : null;
+    public final ImageVariants imageVariants = createImageVariants();
+    public final LandingPage landingPage = createLandingPage();
+    public final BufferPool bufferPool = createBufferPool();
+    public final TransferReaper transferReaper;
+
+    // stdin can only be read once, so all shares serve the same source
+    private PipeSource stdinSource = null;
+
+    /**
+     * @param report receives messages about stalled transfers, called from the reaper thread
+     */
+    public SharedServices(Consumer<String> report) {
+        transferReaper = new TransferReaper(
+            TimeUnit.SECONDS.toMillis(parseLong(getSetting("writeTimeout", "QG_WRITE_TIMEOUT", ""), TransferReaper.DEFAULT_WRITE_TIMEOUT_SECONDS)),
+            parseLong(getSetting("minRate", "QG_MIN_RATE", ""), TransferReaper.DEFAULT_MIN_RATE),
+            TimeUnit.SECONDS.toMillis(parseLong(getSetting("minRatePeriod", "QG_MIN_RATE_PERIOD", ""), TransferReaper.DEFAULT_MIN_RATE_SECONDS)),
+            report
+        );
+    }
+
+    /**
+     * @param replayBytes replay buffer size if stdin is not read yet
+     */
+    public synchronized PipeSource stdinSource(long replayBytes) {
+        if(stdinSource == null) {
+            stdinSource = PipeSource.stdin(replayBytes).start();
+        }
+        return stdinSource;
+    }
+
+    public synchronized boolean isStdinSource(LiveSource source) {
+        return source != null && source == stdinSource;
+    }
+
+    private static ContentCache createContentCache() {
+        long cacheSize = parseInt(getSetting("cacheSize", "QG_CACHE_SIZE", ""), (int)(ContentCache.DEFAULT_BUDGET / (1024 * 1024)));
+        return cacheSize > 0 ? new ContentCache(cacheSize * 1024 * 1024) : null;
+    }
+
+    private static GzipVariants createGzipVariants() {
+        if(!Boolean.parseBoolean(getSetting("gzip", "QG_GZIP", "true"))) {
+            return null;
+        }
+        File directory = new File(getSetting("gzipCache", "QG_GZIP_CACHE", new File(System.getProperty("java.io.tmpdir"), "quickget-gzip").getPath()));
+        try {
+            return new GzipVariants(directory, Runtime.getRuntime().availableProcessors());
+        } catch (IOException e) {
+            log.error("Could not create gzip cache in {}", directory, e);
+            return null;
+        }
+    }
+
+    private static BufferPool createBufferPool() {
+        long capacity = parseLong(getSetting("bufferPool", "QG_BUFFER_POOL", ""), BufferPool.DEFAULT_CAPACITY / (1024 * 1024));
+        return capacity > 0 ? new BufferPool(capacity * 1024 * 1024) : null;
+    }
+
+    private static LandingPage createLandingPage() {
+        int parallel = parseInt(getSetting("parallel", "QG_PARALLEL", ""), 0);
+        return parallel > 1 ? new LandingPage(parallel) : null;
+    }
+
+    private static ImageVariants createImageVariants() {
+        long cacheSize = parseLong(getSetting("imageCache", "QG_IMAGE_CACHE", ""), ImageVariants.DEFAULT_BUDGET / (1024 * 1024));
+        if(cacheSize <= 0) {
+            return null;
+        }
+        // decoding large images needs a lot of memory, so only a few are rendered at once
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        return new ImageVariants(cacheSize * 1024 * 1024, threads);
+    }
+
+    private static UploadReceiver createUploadReceiver() {
+        String directory = getSetting("upload", "QG_UPLOAD", "");
+        if(emptyString(directory)) {
+            return null;
+        }
+        try {
+            return new UploadReceiver(new File(directory));
+        } catch (IOException e) {
+            log.error("Could not use upload directory {}", directory, e);
+            return null;
+        }
+    }
+}
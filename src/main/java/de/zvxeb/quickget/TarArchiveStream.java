@@ -0,0 +1,220 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * POSIX tar archive of indexed files.
+ *
+ * Unlike ZIP the archive length is known in advance (it is sent as Content-Length). Names that
+ * do not fit a ustar header or are not ASCII and sizes of 8 GiB and more are written to pax
+ * extended headers.
+ */
+public class TarArchiveStream extends ArchiveStream {
+    private static final Logger log = LoggerFactory.getLogger(TarArchiveStream.class);
+
+    private static final int BLOCK = 512;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    private final List<DirectoryIndex.Entry> entries;
+    private int index = 0;
+    private boolean header = true;
+
+    public TarArchiveStream(List<DirectoryIndex.Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @return the exact number of bytes the archive of these entries will have
+     */
+    public static long length(List<DirectoryIndex.Entry> entries) {
+        long length = 2 * BLOCK;
+        for(DirectoryIndex.Entry entry : entries) {
+            length += header(entry).length + padded(entry.size);
+        }
+        return length;
+    }
+
+    @Override
+    protected InputStream next() throws IOException {
+        if(index >= entries.size()) {
+            if(index++ == entries.size()) {
+                return new ByteArrayInputStream(new byte[2 * BLOCK]);
+            }
+            return null;
+        }
+        DirectoryIndex.Entry entry = entries.get(index);
+        if(header) {
+            header = false;
+            return new ByteArrayInputStream(header(entry));
+        }
+        header = true;
+        index++;
+        InputStream content;
+        try {
+            FileChannel channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+            content = new FileRangeInputStream(channel, 0, entry.size, true);
+        } catch (IOException | InvalidPathException e) {
+            // the header is out already, the length has to stay as announced
+            log.warn("Could not read {} for archive, sending zeros: {}", entry.path, e.toString());
+            content = EMPTY;
+        }
+        return new PaddedInputStream(content, padded(entry.size));
+    }
+
+    private static long padded(long size) {
+        return (size + BLOCK - 1) / BLOCK * BLOCK;
+    }
+
+    /**
+     * @return the ustar header block, preceded by a pax header if needed
+     */
+    private static byte [] header(DirectoryIndex.Entry entry) {
+        String name = entry.path;
+        String prefix = "";
+        boolean ascii = StandardCharsets.US_ASCII.newEncoder().canEncode(name);
+        StringBuilder pax = new StringBuilder();
+        if(!ascii || name.length() > 100) {
+            int slash = name.lastIndexOf('/', 155);
+            if(ascii && slash > 0 && name.length() - slash - 1 <= 100) {
+                prefix = name.substring(0, slash);
+                name = name.substring(slash + 1);
+            } else {
+                paxRecord(pax, "path", name);
+                name = ascii(name, 100);
+            }
+        }
+        if(entry.size > MAX_OCTAL_SIZE) {
+            paxRecord(pax, "size", Long.toString(entry.size));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(pax.length() > 0 ? 3 * BLOCK : BLOCK);
+        if(pax.length() > 0) {
+            byte [] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+            out.write(block("PaxHeaders/" + ascii(name, 89), "", records.length, entry.modified, 'x'), 0, BLOCK);
+            out.write(records, 0, records.length);
+            out.write(new byte[(int)(padded(records.length) - records.length)], 0, (int)(padded(records.length) - records.length));
+        }
+        out.write(block(name, prefix, entry.size > MAX_OCTAL_SIZE ? 0 : entry.size, entry.modified, '0'), 0, BLOCK);
+        return out.toByteArray();
+    }
+
+    private static byte [] block(String name, String prefix, long size, long modified, char type) {
+        byte [] b = new byte[BLOCK];
+        put(b, 0, 100, name);
+        put(b, 100, 8, "0000644");
+        put(b, 108, 8, "0000000");
+        put(b, 116, 8, "0000000");
+        put(b, 124, 12, String.format("%011o", size));
+        put(b, 136, 12, String.format("%011o", Math.max(0, modified / 1000)));
+        b[156] = (byte) type;
+        put(b, 257, 6, "ustar");
+        put(b, 263, 2, "00");
+        put(b, 345, 155, prefix);
+        // checksum is computed with its own field set to spaces
+        for(int i = 148; i < 156; i++) {
+            b[i] = ' ';
+        }
+        int sum = 0;
+        for(byte x : b) {
+            sum += x & 0xff;
+        }
+        put(b, 148, 8, String.format("%06o\0 ", sum));
+        return b;
+    }
+
+    private static void put(byte [] b, int offset, int length, String value) {
+        byte [] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, b, offset, Math.min(length, bytes.length));
+    }
+
+    private static String ascii(String s, int length) {
+        StringBuilder sb = new StringBuilder(Math.min(s.length(), length));
+        for(int i = 0; i < s.length() && sb.length() < length; i++) {
+            char c = s.charAt(i);
+            sb.append(c >= 32 && c < 127 ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends "length key=value\n" where length counts the whole record including itself.
+     */
+    private static void paxRecord(StringBuilder sb, String key, String value) {
+        int payload = key.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int length = payload + Integer.toString(payload).length();
+        if(Integer.toString(length).length() > Integer.toString(payload).length()) {
+            length++;
+        }
+        sb.append(length).append(' ').append(key).append('=').append(value).append('\n');
+    }
+
+    /**
+     * Content padded with zeros to a fixed length (also when the file got shorter meanwhile).
+     */
+    private static class PaddedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+        private boolean eof = false;
+
+        PaddedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte [] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n <= 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining <= 0) {
+                return -1;
+            }
+            len = (int)Math.min(len, remaining);
+            int n = eof ? -1 : in.read(b, off, len);
+            if(n < 0) {
+                eof = true;
+                n = len;
+                Arrays.fill(b, off, off + n, (byte) 0);
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
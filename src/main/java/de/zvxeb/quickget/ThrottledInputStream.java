@@ -0,0 +1,51 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Paces reads (and thereby the writes to the client) with a {@link BandwidthLimiter.Client}.
+ */
+public class ThrottledInputStream extends FilterInputStream {
+    private final BandwidthLimiter.Client client;
+
+    public ThrottledInputStream(InputStream in, BandwidthLimiter.Client client) {
+        super(in);
+        this.client = client;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if(b >= 0) {
+            client.acquire(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, (int)Math.min(len, client.chunkSize()));
+        if(n > 0) {
+            client.acquire(n);
+        }
+        return n;
+    }
+}
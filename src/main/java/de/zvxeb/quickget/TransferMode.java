@@ -0,0 +1,41 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+/**
+ * How file content is written to the client.
+ */
+public enum TransferMode {
+    /**
+     * Copy through pooled direct buffers if the server has a buffer pool,
+     * otherwise through an InputStream (chunked for larger files).
+     */
+    STREAM,
+    /**
+     * Fixed length transfer straight from the file channel to the socket (sendfile where available).
+     */
+    SENDFILE;
+
+    public static TransferMode fromSetting(String setting) {
+        for(TransferMode mode : values()) {
+            if(mode.name().equalsIgnoreCase(setting)) {
+                return mode;
+            }
+        }
+        return STREAM;
+    }
+}
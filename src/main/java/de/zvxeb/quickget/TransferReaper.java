@@ -0,0 +1,142 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Closes transfers to clients that stopped receiving, e.g. a phone that left the Wi-Fi.
+ *
+ * A blocking socket write never times out, so a half-open connection would hold its worker
+ * thread and file forever. The reaper checks the transfers of all watched servers once a second
+ * and aborts those without progress for the write timeout, and those that sent less than the
+ * minimum rate over a whole period. Live content (stdin, pipes, followed files) may wait for its
+ * producer for any time, so only the time it is blocked writing to the client counts as idle and
+ * the minimum rate does not apply. Aborting closes the connection, which ends the write and
+ * releases the response.
+ *
+ * Progress is only seen per written chunk (at most {@link ChannelResponse#PROGRESS_CHUNK}), so
+ * clients slower than a chunk per write timeout look stalled as well.
+ */
+public class TransferReaper implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(TransferReaper.class);
+
+    public static final long DEFAULT_WRITE_TIMEOUT_SECONDS = 60;
+    public static final long DEFAULT_MIN_RATE = 1024;
+    public static final long DEFAULT_MIN_RATE_SECONDS = 120;
+
+    private static final long CHECK_MILLIS = 1000;
+
+    private final long writeTimeoutNanos;
+    private final long minRate;
+    private final long minRateNanos;
+    private final Consumer<String> report;
+    // transfers of the running servers by port
+    private final Map<Transfers, Integer> watched = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param writeTimeoutMillis time without progress before a transfer is closed, 0 for no limit
+     * @param minRate bytes per second a transfer has to reach over each period, 0 for no limit
+     * @param minRateMillis period the minimum rate is checked over
+     * @param report receives messages about closed transfers, called from the reaper thread, null to log them
+     */
+    public TransferReaper(long writeTimeoutMillis, long minRate, long minRateMillis, Consumer<String> report) {
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, writeTimeoutMillis));
+        this.minRate = Math.max(0, minRate);
+        this.minRateNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(CHECK_MILLIS, minRateMillis));
+        this.report = report;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "QuickGet Reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::check, CHECK_MILLIS, CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param port of the server, for reporting
+     */
+    public void watch(Transfers transfers, int port) {
+        watched.put(transfers, port);
+    }
+
+    public void unwatch(Transfers transfers) {
+        watched.remove(transfers);
+    }
+
+    private void check() {
+        long now = System.nanoTime();
+        for(Map.Entry<Transfers, Integer> entry : watched.entrySet()) {
+            for(Transfers.Transfer transfer : entry.getKey().list()) {
+                String reason = stalled(transfer, now);
+                if(reason != null && transfer.abort()) {
+                    report(String.format("Closed stalled transfer on port %d (%s): %s", entry.getValue(), reason, transfer));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return why the transfer is considered stalled, null if it is fine
+     */
+    private String stalled(Transfers.Transfer transfer, long now) {
+        if(transfer.isWaiting()) {
+            // live content may wait for its producer as long as it likes
+            return null;
+        }
+        long idle = now - transfer.getLastProgress();
+        if(writeTimeoutNanos > 0 && idle > writeTimeoutNanos) {
+            return String.format("no progress for %d s", TimeUnit.NANOSECONDS.toSeconds(idle));
+        }
+        if(minRate == 0 || transfer.live || now - transfer.checkedAt < minRateNanos) {
+            // the rate of live content is set by its producer
+            return null;
+        }
+        long sent = transfer.getSent();
+        long rate = (sent - transfer.checkedSent) * TimeUnit.SECONDS.toNanos(1) / (now - transfer.checkedAt);
+        transfer.checkedSent = sent;
+        transfer.checkedAt = now;
+        if(rate < minRate) {
+            return String.format("%d bytes/s for %d s", rate, TimeUnit.NANOSECONDS.toSeconds(minRateNanos));
+        }
+        return null;
+    }
+
+    private void report(String message) {
+        if(report != null) {
+            report.accept(message);
+        } else {
+            log.warn(message);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        watched.clear();
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Response bodies currently being sent by a server, with their progress.
+ */
+public class Transfers {
+    public static class Transfer {
+        public final String client;
+        public final String name;
+        /**
+         * Bytes to send, -1 if not known in advance
+         */
+        public final long length;
+        /**
+         * Content that is still being produced (stdin, pipes, followed files)
+         */
+        public final boolean live;
+        public final long started = System.currentTimeMillis();
+        // only updated by the thread sending the response
+        private volatile long sent = 0;
+        private volatile long lastProgress = System.nanoTime();
+        private volatile boolean waiting = false;
+        private volatile Runnable abort;
+        // only used by the reaper
+        long checkedSent = 0;
+        long checkedAt = lastProgress;
+
+        Transfer(String client, String name, long length, boolean live) {
+            this.client = client;
+            this.name = name;
+            this.length = length;
+            this.live = live;
+        }
+
+        public void add(long bytes) {
+            sent += bytes;
+            lastProgress = System.nanoTime();
+        }
+
+        /**
+         * Marks the start of a read from a live source; waiting for the producer is not idle time.
+         */
+        public void beginWait() {
+            waiting = true;
+        }
+
+        /**
+         * Marks the end of a read from a live source, the idle time starts over.
+         */
+        public void endWait() {
+            lastProgress = System.nanoTime();
+            waiting = false;
+        }
+
+        /**
+         * @return true while the transfer waits for its live source instead of the client
+         */
+        public boolean isWaiting() {
+            return waiting;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        /**
+         * @return System.nanoTime() of the last progress (or the start)
+         */
+        public long getLastProgress() {
+            return lastProgress;
+        }
+
+        /**
+         * @param abort closes the connection of the transfer, may be called from any thread
+         */
+        public void setAbort(Runnable abort) {
+            this.abort = abort;
+        }
+
+        /**
+         * Closes the connection so the thread and file sending the response are freed.
+         *
+         * @return false if the transfer cannot be aborted
+         */
+        public boolean abort() {
+            Runnable action = abort;
+            if(action == null) {
+                return false;
+            }
+            abort = null;
+            action.run();
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            long sent = this.sent;
+            if(length > 0) {
+                return String.format("%s to %s: %d of %d bytes (%d%%)", name, client, sent, length, sent * 100 / length);
+            }
+            return String.format("%s to %s: %d bytes", name, client, sent);
+        }
+    }
+
+    private final Set<Transfer> active = ConcurrentHashMap.newKeySet();
+
+    public Transfer begin(String client, String name, long length) {
+        return begin(client, name, length, false);
+    }
+
+    public Transfer begin(String client, String name, long length, boolean live) {
+        Transfer transfer = new Transfer(client, name, length, live);
+        active.add(transfer);
+        return transfer;
+    }
+
+    public void end(Transfer transfer) {
+        active.remove(transfer);
+    }
+
+    public int size() {
+        return active.size();
+    }
+
+    /**
+     * @return the running transfers, oldest first
+     */
+    public List<Transfer> list() {
+        List<Transfer> list = new ArrayList<>(active);
+        list.sort(Comparator.comparingLong(t -> t.started));
+        return list;
+    }
+}
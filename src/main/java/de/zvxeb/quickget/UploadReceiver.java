@@ -0,0 +1,509 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Stores uploaded files in a directory.
+ *
+ * Request bodies (raw or multipart/form-data) are streamed through a single fixed buffer
+ * into a temporary file which is renamed once complete, so memory use does not depend on
+ * the upload size and incomplete uploads never show up under their final name.
+ */
+public class UploadReceiver {
+    private static final Logger log = LoggerFactory.getLogger(UploadReceiver.class);
+
+    /**
+     * Request path of the upload form and endpoint
+     */
+    public static final String PATH = "upload";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PART_HEADER = 8192;
+    private static final String TEMP_PREFIX = ".quickget-";
+    private static final String TEMP_SUFFIX = ".part";
+
+    private final Path directory;
+    private final ResumableUploads resumableUploads = new ResumableUploads(this);
+
+    public UploadReceiver(File directory) throws IOException {
+        this.directory = Files.createDirectories(directory.toPath().toAbsolutePath().normalize());
+        if(!Files.isWritable(this.directory)) {
+            throw new IOException("Upload directory is not writable: " + this.directory);
+        }
+    }
+
+    public File getDirectory() {
+        return directory.toFile();
+    }
+
+    public ResumableUploads getResumableUploads() {
+        return resumableUploads;
+    }
+
+    private static final byte [] FORM = page(
+        "<form method=\"post\" action=\"/" + PATH + "\" enctype=\"multipart/form-data\">\n"
+            + "<p><input type=\"file\" name=\"file\" multiple></p>\n"
+            + "<p><button type=\"submit\">Upload</button></p>\n"
+            + "</form>\n"
+            + Util.inlineScript("uploader.js")
+    );
+
+    public byte [] getForm() {
+        return FORM;
+    }
+
+    public byte [] renderResult(List<File> files) {
+        StringBuilder sb = new StringBuilder(128 + files.size() * 64);
+        sb.append("<p>Received ").append(files.size()).append(files.size() == 1 ? " file" : " files").append(":</p>\n<ul>\n");
+        for(File file : files) {
+            sb.append("<li>").append(escape(file.getName())).append(" (").append(file.length()).append(" bytes)</li>\n");
+        }
+        sb.append("</ul>\n<p><a href=\"/").append(PATH).append("\">Upload more</a></p>\n");
+        return page(sb.toString());
+    }
+
+    private static byte [] page(String body) {
+        return ("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\">"
+            + "<meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">"
+            + "<title>Upload</title></head><body>\n<h1>Upload</h1>\n"
+            + body
+            + "</body></html>\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * @param contentType value of the Content-Type header
+     * @return the boundary if the body is multipart/form-data, null otherwise
+     */
+    public static String multipartBoundary(String contentType) {
+        if(contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) {
+            return null;
+        }
+        String boundary = parameter(contentType, "boundary");
+        return boundary == null || boundary.isEmpty() ? null : boundary;
+    }
+
+    /**
+     * Stores a raw request body.
+     *
+     * @param length the exact length of the body, nothing after it is read
+     * @return the stored file
+     */
+    public File receive(InputStream body, long length, String fileName) throws IOException {
+        BoundedInputStream in = new BoundedInputStream(body, length);
+        byte [] buffer = new byte[BUFFER_SIZE];
+        return store(fileName, channel -> {
+            int n;
+            while((n = in.read(buffer)) >= 0) {
+                write(channel, buffer, 0, n);
+            }
+            if(in.remaining > 0) {
+                throw new EOFException("Upload ended after " + (length - in.remaining) + " of " + length + " bytes");
+            }
+        });
+    }
+
+    /**
+     * Stores all file parts of a multipart/form-data body, other fields are skipped.
+     *
+     * @param length the exact length of the body, nothing after it is read
+     * @return the stored files in order
+     */
+    public List<File> receiveMultipart(InputStream body, long length, String boundary) throws IOException {
+        BoundedInputStream in = new BoundedInputStream(body, length);
+        MultipartReader reader = new MultipartReader(in, boundary);
+        List<File> files = new ArrayList<>();
+        while(reader.nextPart()) {
+            String disposition = reader.headers.get("content-disposition");
+            String fileName = disposition == null ? null : fileName(disposition);
+            if(fileName == null) {
+                reader.copyPart(null);
+                continue;
+            }
+            files.add(store(fileName, reader::copyPart));
+        }
+        // epilogue, keeps the connection usable
+        while(in.skip(BUFFER_SIZE) > 0) {
+            // skipping
+        }
+        return files;
+    }
+
+    private interface Writer {
+        void write(FileChannel channel) throws IOException;
+    }
+
+    private File store(String fileName, Writer writer) throws IOException {
+        Path temp = createPart();
+        boolean stored = false;
+        try {
+            try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                writer.write(channel);
+            }
+            File target = complete(temp, fileName);
+            stored = true;
+            return target;
+        } finally {
+            if(!stored) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * @return a new empty file in the upload directory that is not mistaken for an upload
+     */
+    Path createPart() throws IOException {
+        // not createTempFile, that would make the stored file private to the owner
+        return Files.createFile(directory.resolve(TEMP_PREFIX + UUID.randomUUID() + TEMP_SUFFIX));
+    }
+
+    /**
+     * Gives a completely written part file its final (unique) name.
+     */
+    File complete(Path part, String fileName) throws IOException {
+        Path target = moveToUniqueName(part, representable(sanitize(fileName)));
+        log.info("Received {} ({} bytes)", target.getFileName(), Files.size(target));
+        return target.toFile();
+    }
+
+    private Path moveToUniqueName(Path temp, String fileName) throws IOException {
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String extension = dot > 0 ? fileName.substring(dot) : "";
+        for(int i=1; ; i++) {
+            Path target = directory.resolve(i == 1 ? fileName : String.format("%s (%d)%s", base, i, extension));
+            if(Files.exists(target)) {
+                continue;
+            }
+            try {
+                // without options the move fails instead of replacing a file that appeared meanwhile
+                return Files.move(temp, target);
+            } catch (FileAlreadyExistsException e) {
+                log.debug("{} appeared while storing upload", target);
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, byte [] buffer, int offset, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer, offset, length);
+        while(bb.hasRemaining()) {
+            channel.write(bb);
+        }
+    }
+
+    /**
+     * Replaces characters the file system can not represent (with a non UTF-8 encoding for file names).
+     */
+    private String representable(String fileName) {
+        try {
+            directory.resolve(fileName);
+            return fileName;
+        } catch (InvalidPathException e) {
+            StringBuilder sb = new StringBuilder(fileName.length());
+            for(int i=0; i<fileName.length(); i++) {
+                char c = fileName.charAt(i);
+                sb.append(c < 0x80 ? c : '_');
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Reduces a client supplied name to a plain file name within the upload directory.
+     */
+    static String sanitize(String fileName) {
+        String name = fileName == null ? "" : fileName;
+        // browsers on Windows may send the full path
+        name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        StringBuilder sb = new StringBuilder(name.length());
+        for(int i=0; i<name.length(); i++) {
+            char c = name.charAt(i);
+            if(c >= ' ' && c != 0x7f && ":*?\"<>|".indexOf(c) < 0) {
+                sb.append(c);
+            }
+        }
+        name = sb.toString().trim();
+        while(name.startsWith(".")) {
+            name = name.substring(1);
+        }
+        if(name.isEmpty()) {
+            name = "upload";
+        }
+        return name.length() > 200 ? name.substring(name.length() - 200) : name;
+    }
+
+    /**
+     * @return the file name of a form-data part or null if the part is not a file
+     */
+    static String fileName(String disposition) {
+        String encoded = parameter(disposition, "filename*");
+        if(encoded != null) {
+            int quote = encoded.indexOf("''");
+            if(quote >= 0) {
+                try {
+                    return URLDecoder.decode(encoded.substring(quote + 2).replace("+", "%2B"), encoded.substring(0, quote));
+                } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                    log.debug("Invalid file name {}", encoded);
+                }
+            }
+        }
+        return parameter(disposition, "filename");
+    }
+
+    /**
+     * Value of a (possibly quoted) parameter of a header like Content-Type or Content-Disposition.
+     */
+    static String parameter(String header, String name) {
+        String [] parts = header.split(";(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
+        for(int i=1; i<parts.length; i++) {
+            String part = parts[i].trim();
+            int equals = part.indexOf('=');
+            if(equals > 0 && part.substring(0, equals).trim().equalsIgnoreCase(name)) {
+                String value = part.substring(equals + 1).trim();
+                if(value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1).replace("\\\"", "\"").replace("\\\\", "\\");
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keeps reads within the request body.
+     */
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte [] b = new byte[1];
+            return read(b, 0, 1) <= 0 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int)Math.min(len, remaining));
+            if(n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte [] b = new byte[(int)Math.min(BUFFER_SIZE, Math.max(0, n))];
+            int read = read(b, 0, b.length);
+            return Math.max(0, read);
+        }
+    }
+
+    /**
+     * Splits a multipart body at the boundaries without holding more than one buffer of it.
+     */
+    private static class MultipartReader {
+        private final InputStream in;
+        /**
+         * CRLF--boundary, the buffer starts with a virtual CRLF so the first boundary matches as well
+         */
+        private final byte [] delimiter;
+        private final byte [] buffer = new byte[BUFFER_SIZE];
+        private int start = 0;
+        private int end = 0;
+        private boolean eof = false;
+
+        final Map<String, String> headers = new HashMap<>();
+
+        MultipartReader(InputStream in, String boundary) {
+            this.in = in;
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            buffer[end++] = '\r';
+            buffer[end++] = '\n';
+        }
+
+        /**
+         * Skips the rest of the current part (or the preamble) and reads the headers of the next part.
+         *
+         * @return false after the closing boundary
+         */
+        boolean nextPart() throws IOException {
+            copyPart(null);
+            start += delimiter.length;
+            if(!ensure(2)) {
+                throw new EOFException("Multipart body ended without closing boundary");
+            }
+            if(buffer[start] == '-' && buffer[start + 1] == '-') {
+                return false;
+            }
+
+            // rest of the boundary line (transport padding) and the part headers
+            headers.clear();
+            boolean boundaryLine = true;
+            int consumed = 0;
+            while(true) {
+                int newline = indexOf((byte)'\n', start);
+                if(newline < 0) {
+                    if(end - start >= MAX_PART_HEADER || consumed >= MAX_PART_HEADER) {
+                        throw new IOException("Multipart header too large");
+                    }
+                    if(!fill()) {
+                        throw new EOFException("Multipart body ended in part header");
+                    }
+                    continue;
+                }
+                int lineEnd = newline > start && buffer[newline - 1] == '\r' ? newline - 1 : newline;
+                String line = new String(buffer, start, lineEnd - start, StandardCharsets.UTF_8);
+                consumed += newline + 1 - start;
+                start = newline + 1;
+                if(boundaryLine) {
+                    boundaryLine = false;
+                    continue;
+                }
+                if(line.isEmpty()) {
+                    return true;
+                }
+                int colon = line.indexOf(':');
+                if(colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+                }
+            }
+        }
+
+        /**
+         * Writes the content of the current part up to the next delimiter.
+         *
+         * @param channel target or null to skip the content
+         */
+        void copyPart(FileChannel channel) throws IOException {
+            while(true) {
+                ensure(delimiter.length);
+                int found = indexOf(delimiter, start);
+                if(found >= 0) {
+                    if(channel != null) {
+                        write(channel, buffer, start, found - start);
+                    }
+                    start = found;
+                    return;
+                }
+                if(eof) {
+                    throw new EOFException("Multipart body ended unexpectedly");
+                }
+                // keep what could be the beginning of a delimiter
+                int safe = Math.max(start, end - delimiter.length + 1);
+                if(channel != null) {
+                    write(channel, buffer, start, safe - start);
+                }
+                start = safe;
+                fill();
+            }
+        }
+
+        /**
+         * @return true if at least n bytes are available
+         */
+        private boolean ensure(int n) throws IOException {
+            while(end - start < n) {
+                if(!fill()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean fill() throws IOException {
+            if(eof) {
+                return false;
+            }
+            if(start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            int n = in.read(buffer, end, buffer.length - end);
+            if(n < 0) {
+                eof = true;
+                return false;
+            }
+            end += n;
+            return true;
+        }
+
+        private int indexOf(byte b, int from) {
+            for(int i=from; i<end; i++) {
+                if(buffer[i] == b) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int indexOf(byte [] pattern, int from) {
+            byte first = pattern[0];
+            int last = end - pattern.length;
+            outer:
+            for(int i=from; i<=last; i++) {
+                if(buffer[i] != first) {
+                    continue;
+                }
+                for(int j=1; j<pattern.length; j++) {
+                    if(buffer[i + j] != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -17,11 +17,54 @@
 package de.zvxeb.quickget;
 
 import io.nayuki.qrcodegen.QrCode;
+import org.slf4j.LoggerFactory;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
 
 public class Util {
+    // IMF-fixdate (RFC 7231), RFC_1123_DATE_TIME would write single digit days
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    public static String formatHttpDate(long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * @return milliseconds since the epoch or -1 if the date can not be parsed
+     */
+    public static long parseHttpDate(String date) {
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the script resource (next to this class) as inline script element, empty if it can not be read
+     */
+    public static String inlineScript(String resource) {
+        try(InputStream in = Util.class.getResourceAsStream(resource)) {
+            if(in == null) {
+                return "";
+            }
+            return "<script>\n" + new String(in.readAllBytes(), StandardCharsets.UTF_8) + "</script>\n";
+        } catch (IOException e) {
+            LoggerFactory.getLogger(Util.class).warn("Could not read {}", resource, e);
+            return "";
+        }
+    }
+
     public static BufferedImage getImage(QrCode qrCode, Color light, Color dark) {
         if(light == null) {
             light = Color.white;
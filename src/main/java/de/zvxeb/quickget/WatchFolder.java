@@ -0,0 +1,232 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Publishes the newest file landing in a directory, e.g. screenshots.
+ *
+ * A file is complete once no change events arrived for the settle time and its size did not
+ * change in between; there is no polling, every check is triggered by an event. Files completing
+ * in a burst are coalesced: at most one file is published per {@link #COALESCE_MILLIS}, the
+ * newest one of the burst wins.
+ */
+public class WatchFolder implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(WatchFolder.class);
+
+    public static final long DEFAULT_SETTLE_MILLIS = 250;
+    public static final long COALESCE_MILLIS = 500;
+
+    private static final String [] PARTIAL_SUFFIXES = { ".tmp", ".part", ".crdownload", ".download", "~" };
+
+    private static class Pending {
+        long size;
+        ScheduledFuture<?> check;
+    }
+
+    private final Path directory;
+    private final long settleMillis;
+    private final Consumer<File> publisher;
+    private final WatchService watchService;
+    private final Thread watcher;
+    // all state below is only touched by the scheduler thread
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<Path, Pending> pending = new HashMap<>();
+    private Path candidate;
+    private long candidateModified;
+    private long publishedModified = Long.MIN_VALUE;
+    private long lastPublish;
+    private ScheduledFuture<?> publishTask;
+
+    /**
+     * @param publisher receives completed files, called on the watcher's scheduler thread
+     */
+    public WatchFolder(File directory, long settleMillis, Consumer<File> publisher) throws IOException {
+        this.directory = directory.toPath().toAbsolutePath().normalize();
+        this.settleMillis = settleMillis;
+        this.publisher = publisher;
+        this.lastPublish = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(COALESCE_MILLIS);
+        this.watchService = this.directory.getFileSystem().newWatchService();
+        this.directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "QuickGet Watch Folder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher = new Thread(this::watch, "QuickGet Watch Folder Events");
+        watcher.setDaemon(true);
+        watcher.start();
+        log.info("Watching {} for new files", this.directory);
+    }
+
+    public File getDirectory() {
+        return directory.toFile();
+    }
+
+    private void watch() {
+        try {
+            while(true) {
+                WatchKey key = watchService.take();
+                for(WatchEvent<?> event : key.pollEvents()) {
+                    if(event.kind() == OVERFLOW) {
+                        continue;
+                    }
+                    Path path = directory.resolve((Path) event.context());
+                    scheduler.execute(() -> changed(path));
+                }
+                if(!key.reset()) {
+                    log.warn("{} is no longer watched", directory);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException | RejectedExecutionException e) {
+            log.debug("Watch folder stopped");
+        }
+    }
+
+    private static boolean isPartial(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        if(name.startsWith(".")) {
+            return true;
+        }
+        for(String suffix : PARTIAL_SUFFIXES) {
+            if(name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private BasicFileAttributes attributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.debug("Could not read attributes of {}", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Restarts the settle time of the file.
+     */
+    private void changed(Path path) {
+        if(isPartial(path)) {
+            return;
+        }
+        BasicFileAttributes attrs = attributes(path);
+        if(attrs == null || !attrs.isRegularFile()) {
+            Pending gone = pending.remove(path);
+            if(gone != null) {
+                gone.check.cancel(false);
+            }
+            return;
+        }
+        Pending file = pending.computeIfAbsent(path, p -> new Pending());
+        file.size = attrs.size();
+        if(file.check != null) {
+            file.check.cancel(false);
+        }
+        file.check = scheduler.schedule(() -> settled(path), settleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void settled(Path path) {
+        Pending file = pending.get(path);
+        if(file == null) {
+            return;
+        }
+        BasicFileAttributes attrs = attributes(path);
+        if(attrs == null) {
+            pending.remove(path);
+            return;
+        }
+        if(attrs.size() != file.size) {
+            // written without an event reaching us yet
+            file.size = attrs.size();
+            file.check = scheduler.schedule(() -> settled(path), settleMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        pending.remove(path);
+        long modified = attrs.lastModifiedTime().toMillis();
+        if(attrs.size() == 0 || modified < publishedModified) {
+            return;
+        }
+        if(candidate == null || modified >= candidateModified) {
+            candidate = path;
+            candidateModified = modified;
+        }
+        if(publishTask == null) {
+            long wait = lastPublish + TimeUnit.MILLISECONDS.toNanos(COALESCE_MILLIS) - System.nanoTime();
+            if(wait <= 0) {
+                publish();
+            } else {
+                publishTask = scheduler.schedule(this::publish, wait, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void publish() {
+        publishTask = null;
+        Path file = candidate;
+        candidate = null;
+        if(file == null) {
+            return;
+        }
+        publishedModified = candidateModified;
+        lastPublish = System.nanoTime();
+        log.info("Publishing {}", file);
+        try {
+            publisher.accept(file.toFile());
+        } catch (RuntimeException e) {
+            log.error("Could not publish {}", file, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        watcher.interrupt();
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import fi.iki.elonen.NanoHTTPD;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs NanoHTTPD client handlers on an executor instead of a new platform thread per connection.
+ *
+ * On JDK 21+ {@link #newExecutor(boolean, int)} creates one virtual thread per client,
+ * older runtimes get a bounded pool of platform threads. Further clients wait in a bounded
+ * line, once that is full they are answered with 503 (see {@link Rejectable}).
+ */
+public class WorkerAsyncRunner implements NanoHTTPD.AsyncRunner {
+    private static final Logger log = LoggerFactory.getLogger(WorkerAsyncRunner.class);
+
+    public static final int DEFAULT_PLATFORM_THREADS = 64;
+    /**
+     * Waiting clients per platform thread
+     */
+    public static final int QUEUE_PER_THREAD = 4;
+    public static final int RETRY_AFTER_SECONDS = 5;
+
+    /**
+     * Client handlers that can turn the client away when no worker is available.
+     */
+    public interface Rejectable {
+        /**
+         * Answers 503 without reading the request; the handler is closed afterwards.
+         */
+        void reject(int retryAfterSeconds);
+    }
+
+    private final ExecutorService executor;
+    private final Set<NanoHTTPD.ClientHandler> running = ConcurrentHashMap.newKeySet();
+
+    public WorkerAsyncRunner(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param virtual use virtual threads if the runtime supports them
+     * @param platformThreads size of the platform thread pool otherwise, up to
+     *                        {@link #QUEUE_PER_THREAD} clients per thread can wait for it
+     */
+    public static ExecutorService newExecutor(boolean virtual, int platformThreads) {
+        if(virtual) {
+            try {
+                // JDK 21+, looked up reflectively so the application still runs on older releases
+                ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                log.info("Using virtual threads for clients");
+                return executor;
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                log.info("Virtual threads not available, using {} platform threads", platformThreads);
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            platformThreads, platformThreads, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(platformThreads * QUEUE_PER_THREAD),
+            r -> {
+                Thread t = new Thread(r, "QuickGet Worker #" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        );
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public int getRunning() {
+        return running.size();
+    }
+
+    @Override
+    public void closeAll() {
+        for(NanoHTTPD.ClientHandler handler : new ArrayList<>(running)) {
+            handler.close();
+        }
+    }
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler clientHandler) {
+        running.remove(clientHandler);
+    }
+
+    @Override
+    public void exec(NanoHTTPD.ClientHandler clientHandler) {
+        running.add(clientHandler);
+        try {
+            executor.execute(clientHandler);
+        } catch (RejectedExecutionException e) {
+            running.remove(clientHandler);
+            if(executor.isShutdown()) {
+                log.warn("Client rejected, executor is shut down");
+            } else {
+                log.warn("Client rejected, all workers busy");
+                if(clientHandler instanceof Rejectable) {
+                    ((Rejectable) clientHandler).reject(RETRY_AFTER_SECONDS);
+                }
+            }
+            clientHandler.close();
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ QuickGet
+ Copyright 2022 Hendrik Iben
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package de.zvxeb.quickget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+/**
+ * ZIP archive of indexed files, streamed without knowing CRCs or compressed sizes in advance.
+ *
+ * Entries carry their CRC and sizes in a data descriptor after the content (flag bit 3).
+ * Files that are already compressed are stored, others deflated. ZIP64 records are used
+ * for entries, offsets and entry counts beyond the classic limits.
+ */
+public class ZipArchiveStream extends ArchiveStream {
+    private static final Logger log = LoggerFactory.getLogger(ZipArchiveStream.class);
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP64_END = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int END = 0x06054b50;
+
+    private static final short ZIP64_EXTRA = 0x0001;
+    private static final long LIMIT = 0xFFFFFFFFL;
+    private static final int LIMIT_ENTRIES = 0xFFFF;
+
+    private static final int FLAGS = 0x0008 | 0x0800; // data descriptor, UTF-8 names
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int UNIX = 3 << 8;
+    private static final int FILE_MODE = 0100644 << 16;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private enum Phase { HEADER, DATA, DESCRIPTOR, CENTRAL, END, DONE }
+
+    private static class Record {
+        final byte [] name;
+        final int method;
+        final int dosTime;
+        final long offset;
+        final boolean zip64;
+        long crc;
+        long compressedSize;
+        long size;
+
+        Record(byte [] name, int method, int dosTime, long offset, boolean zip64) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.offset = offset;
+            this.zip64 = zip64;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    private final List<DirectoryIndex.Entry> entries;
+    private final List<Record> records;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    private Phase phase = Phase.HEADER;
+    private int index = 0;
+    private long offset = 0;
+    private long centralStart;
+    private Record record;
+    private CountingInputStream raw;
+    private CheckedInputStream checked;
+    private CountingInputStream counted;
+
+    public ZipArchiveStream(List<DirectoryIndex.Entry> entries) {
+        this.entries = entries;
+        this.records = new ArrayList<>(entries.size());
+    }
+
+    @Override
+    protected InputStream next() throws IOException {
+        while(true) {
+            switch (phase) {
+                case HEADER:
+                    if(index >= entries.size()) {
+                        phase = Phase.CENTRAL;
+                        index = 0;
+                        centralStart = offset;
+                        break;
+                    }
+                    InputStream header = nextEntry(entries.get(index++));
+                    if(header != null) {
+                        phase = Phase.DATA;
+                        return header;
+                    }
+                    break;
+                case DATA:
+                    phase = Phase.DESCRIPTOR;
+                    return counted;
+                case DESCRIPTOR:
+                    phase = Phase.HEADER;
+                    return descriptor();
+                case CENTRAL:
+                    if(index < records.size()) {
+                        return centralHeader(records.get(index++));
+                    }
+                    phase = Phase.END;
+                    break;
+                case END:
+                    phase = Phase.DONE;
+                    deflater.end();
+                    return end();
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * Opens the file and sets up the content stream.
+     *
+     * @return the local header or null if the file can not be read (it is left out)
+     */
+    private InputStream nextEntry(DirectoryIndex.Entry entry) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ);
+        } catch (IOException | InvalidPathException e) {
+            log.warn("Leaving {} out of archive: {}", entry.path, e.toString());
+            return null;
+        }
+        // sizes stay at what was indexed, even if the file grows meanwhile
+        long size = entry.size;
+        int method = GzipVariants.isAlreadyCompressed(entry.mimeType, entry.file.getName()) ? STORED : DEFLATED;
+        // deflate may expand incompressible data a little
+        boolean zip64 = size + (size >>> 8) + 1024 >= LIMIT;
+        record = new Record(entry.path.getBytes(StandardCharsets.UTF_8), method, dosTime(entry.modified), offset, zip64);
+        records.add(record);
+
+        raw = new CountingInputStream(new FileRangeInputStream(channel, 0, size, true));
+        checked = new CheckedInputStream(raw, new CRC32());
+        if(method == DEFLATED) {
+            deflater.reset();
+            counted = new CountingInputStream(new DeflaterInputStream(checked, deflater, BUFFER_SIZE));
+        } else {
+            counted = new CountingInputStream(checked);
+        }
+
+        ByteBuffer bb = buffer(30 + record.name.length + (zip64 ? 20 : 0));
+        bb.putInt(LOCAL_HEADER);
+        bb.putShort((short)(zip64 ? VERSION_ZIP64 : VERSION));
+        bb.putShort((short)FLAGS);
+        bb.putShort((short)method);
+        bb.putInt(record.dosTime);
+        bb.putInt(0); // crc, sizes follow in the descriptor
+        bb.putInt(zip64 ? (int)LIMIT : 0);
+        bb.putInt(zip64 ? (int)LIMIT : 0);
+        bb.putShort((short)record.name.length);
+        bb.putShort((short)(zip64 ? 20 : 0));
+        bb.put(record.name);
+        if(zip64) {
+            bb.putShort(ZIP64_EXTRA);
+            bb.putShort((short)16);
+            bb.putLong(0);
+            bb.putLong(0);
+        }
+        return emit(bb);
+    }
+
+    private InputStream descriptor() {
+        record.crc = checked.getChecksum().getValue();
+        record.size = raw.count;
+        record.compressedSize = counted.count;
+        offset += counted.count;
+
+        ByteBuffer bb = buffer(record.zip64 ? 24 : 16);
+        bb.putInt(DATA_DESCRIPTOR);
+        bb.putInt((int)record.crc);
+        if(record.zip64) {
+            bb.putLong(record.compressedSize);
+            bb.putLong(record.size);
+        } else {
+            bb.putInt((int)record.compressedSize);
+            bb.putInt((int)record.size);
+        }
+        return emit(bb);
+    }
+
+    private InputStream centralHeader(Record r) {
+        boolean sizes64 = r.size >= LIMIT || r.compressedSize >= LIMIT;
+        boolean offset64 = r.offset >= LIMIT;
+        int extra = (sizes64 ? 16 : 0) + (offset64 ? 8 : 0);
+        boolean zip64 = r.zip64 || extra > 0;
+
+        ByteBuffer bb = buffer(46 + r.name.length + (extra > 0 ? 4 + extra : 0));
+        bb.putInt(CENTRAL_HEADER);
+        bb.putShort((short)(UNIX | (zip64 ? VERSION_ZIP64 : VERSION)));
+        bb.putShort((short)(zip64 ? VERSION_ZIP64 : VERSION));
+        bb.putShort((short)FLAGS);
+        bb.putShort((short)r.method);
+        bb.putInt(r.dosTime);
+        bb.putInt((int)r.crc);
+        bb.putInt(sizes64 ? (int)LIMIT : (int)r.compressedSize);
+        bb.putInt(sizes64 ? (int)LIMIT : (int)r.size);
+        bb.putShort((short)r.name.length);
+        bb.putShort((short)(extra > 0 ? 4 + extra : 0));
+        bb.putShort((short)0); // comment
+        bb.putShort((short)0); // disk
+        bb.putShort((short)0); // internal attributes
+        bb.putInt(FILE_MODE);
+        bb.putInt(offset64 ? (int)LIMIT : (int)r.offset);
+        bb.put(r.name);
+        if(extra > 0) {
+            bb.putShort(ZIP64_EXTRA);
+            bb.putShort((short)extra);
+            if(sizes64) {
+                bb.putLong(r.size);
+                bb.putLong(r.compressedSize);
+            }
+            if(offset64) {
+                bb.putLong(r.offset);
+            }
+        }
+        return emit(bb);
+    }
+
+    private InputStream end() {
+        long centralOffset = centralStart;
+        long centralSize = offset - centralStart;
+        boolean zip64 = records.size() >= LIMIT_ENTRIES || centralOffset >= LIMIT || centralSize >= LIMIT;
+
+        ByteBuffer bb = buffer((zip64 ? 56 + 20 : 0) + 22);
+        if(zip64) {
+            long zip64End = offset;
+            bb.putInt(ZIP64_END);
+            bb.putLong(44);
+            bb.putShort((short)(UNIX | VERSION_ZIP64));
+            bb.putShort((short)VERSION_ZIP64);
+            bb.putInt(0);
+            bb.putInt(0);
+            bb.putLong(records.size());
+            bb.putLong(records.size());
+            bb.putLong(centralSize);
+            bb.putLong(centralOffset);
+
+            bb.putInt(ZIP64_LOCATOR);
+            bb.putInt(0);
+            bb.putLong(zip64End);
+            bb.putInt(1);
+        }
+        bb.putInt(END);
+        bb.putShort((short)0);
+        bb.putShort((short)0);
+        bb.putShort((short)Math.min(records.size(), LIMIT_ENTRIES));
+        bb.putShort((short)Math.min(records.size(), LIMIT_ENTRIES));
+        bb.putInt((int)Math.min(centralSize, LIMIT));
+        bb.putInt((int)Math.min(centralOffset, LIMIT));
+        bb.putShort((short)0);
+        return emit(bb);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+            if(counted != null) {
+                counted.close();
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private InputStream emit(ByteBuffer bb) {
+        offset += bb.position();
+        return new ByteArrayInputStream(bb.array(), 0, bb.position());
+    }
+
+    private static int dosTime(long millis) {
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if(t.getYear() < 1980) {
+            t = LocalDateTime.of(1980, 1, 1, 0, 0);
+        }
+        int date = (t.getYear() - 1980) << 9 | t.getMonthValue() << 5 | t.getDayOfMonth();
+        int time = t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() / 2;
+        return date << 16 | time;
+    }
+}
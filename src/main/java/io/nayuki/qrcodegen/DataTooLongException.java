@@ -47,6 +47,9 @@ package io.nayuki.qrcodegen;
  */
 public class DataTooLongException extends IllegalArgumentException {
 	
+	private static final long serialVersionUID = 1L;
+	
+	
 	public DataTooLongException() {}
 	
 	
@@ -0,0 +1,99 @@
+// Parallel download: the file is fetched as chunks over several connections
+// and saved from memory. Without script support (or on any problem) the
+// direct link is used.
+(function () {
+  var CHUNK = 4 * 1024 * 1024;
+  var RETRIES = 5;
+  var root = document.getElementById('download');
+  var status = root.querySelector('.status');
+  var url = root.dataset.url;
+  var size = Number(root.dataset.size);
+  var etag = root.dataset.etag;
+  var parallel = Number(root.dataset.parallel);
+
+  function fallback(reason) {
+    status.textContent = reason + ', downloading directly...';
+    window.location.href = url;
+  }
+
+  function sleep(ms) {
+    return new Promise(function (resolve) { setTimeout(resolve, ms); });
+  }
+
+  async function fetchChunk(start, end) {
+    for (var attempt = 0; ; attempt++) {
+      try {
+        var response = await fetch(url, {
+          headers: { 'Range': 'bytes=' + start + '-' + end, 'If-Range': etag },
+          cache: 'no-store'
+        });
+        if (response.status === 200) {
+          // If-Range did not match
+          throw new Error('changed');
+        }
+        if (response.status !== 206) {
+          throw new Error('status ' + response.status);
+        }
+        var blob = await response.blob();
+        if (blob.size !== end - start + 1) {
+          throw new Error('short chunk');
+        }
+        return blob;
+      } catch (e) {
+        if (e.message === 'changed' || attempt >= RETRIES) {
+          throw e;
+        }
+        await sleep(500 * Math.pow(2, attempt));
+      }
+    }
+  }
+
+  async function download() {
+    var count = Math.ceil(size / CHUNK);
+    var parts = new Array(count);
+    var next = 0;
+    var received = 0;
+    var started = Date.now();
+
+    async function worker() {
+      while (next < count) {
+        var index = next++;
+        var start = index * CHUNK;
+        var end = Math.min(size, start + CHUNK) - 1;
+        parts[index] = await fetchChunk(start, end);
+        received += end - start + 1;
+        var seconds = Math.max(0.001, (Date.now() - started) / 1000);
+        status.textContent = Math.floor(received * 100 / size) + '% (' + (received / seconds / 1048576).toFixed(1) + ' MiB/s)';
+      }
+    }
+
+    var workers = [];
+    for (var i = 0; i < Math.min(parallel, count); i++) {
+      workers.push(worker());
+    }
+    await Promise.all(workers);
+
+    var link = document.createElement('a');
+    link.href = URL.createObjectURL(new Blob(parts, { type: root.dataset.type }));
+    link.download = root.dataset.name;
+    document.body.appendChild(link);
+    link.click();
+    status.textContent = 'Done, ' + size + ' bytes in ' + ((Date.now() - started) / 1000).toFixed(1) + ' s';
+  }
+
+  if (!window.fetch || !window.Blob || !window.URL || !URL.createObjectURL) {
+    return;
+  }
+  if (size > Number(root.dataset.max)) {
+    fallback('Too large for a parallel download');
+    return;
+  }
+  if (size < CHUNK) {
+    // nothing to gain
+    fallback('Small file');
+    return;
+  }
+  download().catch(function (e) {
+    fallback(e.message === 'changed' ? 'The file changed' : 'Parallel download failed');
+  });
+})();
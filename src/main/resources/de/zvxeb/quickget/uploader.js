@@ -0,0 +1,141 @@
+// Resumable uploads: files are sent as chunks over several connections and
+// interrupted uploads continue with the missing chunks. Without script support
+// the form above is submitted as a plain multipart upload.
+(function () {
+  var CHUNK = 8 * 1024 * 1024;
+  var PARALLEL = 4;
+  var RETRIES = 8;
+  var form = document.querySelector('form');
+  var input = form.querySelector('input[type=file]');
+  var list = document.createElement('ul');
+  form.parentNode.insertBefore(list, form.nextSibling);
+
+  function request(method, url, headers, body, onprogress) {
+    return new Promise(function (resolve, reject) {
+      var xhr = new XMLHttpRequest();
+      xhr.open(method, url);
+      Object.keys(headers).forEach(function (h) { xhr.setRequestHeader(h, headers[h]); });
+      if (onprogress) { xhr.upload.onprogress = onprogress; }
+      xhr.onload = function () { resolve(xhr); };
+      xhr.onerror = xhr.onabort = function () { reject(new Error('network')); };
+      xhr.send(body);
+    });
+  }
+
+  function parseRanges(value) {
+    return (value || '').split(',').filter(Boolean).map(function (r) {
+      var p = r.split('-');
+      return [Number(p[0]), Number(p[1]) + 1];
+    });
+  }
+
+  function covered(ranges, start, end) {
+    return ranges.some(function (r) { return r[0] <= start && end <= r[1]; });
+  }
+
+  function sleep(ms) {
+    return new Promise(function (resolve) { setTimeout(resolve, ms); });
+  }
+
+  async function locate(file, key) {
+    var url = localStorage.getItem(key);
+    if (url) {
+      var head = await request('HEAD', url, {}, null);
+      if (head.status === 200) {
+        return { url: url, ranges: parseRanges(head.getResponseHeader('Upload-Ranges')) };
+      }
+      localStorage.removeItem(key);
+    }
+    var created = await request('POST', '/resumable', {
+      'Upload-Length': String(file.size),
+      'Upload-Name': encodeURIComponent(file.name)
+    }, null);
+    if (created.status !== 201) {
+      throw new Error(created.responseText || created.statusText);
+    }
+    url = created.getResponseHeader('Location');
+    localStorage.setItem(key, url);
+    return { url: url, ranges: [] };
+  }
+
+  async function upload(file, item) {
+    var key = 'quickget:' + file.name + ':' + file.size + ':' + file.lastModified;
+    var upload = await locate(file, key);
+    var chunks = [];
+    var done = 0;
+    for (var start = 0; start < file.size || (start === 0 && file.size === 0); start += CHUNK) {
+      var end = Math.min(file.size, start + CHUNK);
+      if (covered(upload.ranges, start, end)) {
+        done += end - start;
+      } else {
+        chunks.push([start, end]);
+      }
+      if (file.size === 0) { break; }
+    }
+    var inFlight = {};
+    function show() {
+      var sent = done;
+      Object.keys(inFlight).forEach(function (k) { sent += inFlight[k]; });
+      item.textContent = file.name + ': ' + (file.size ? Math.floor(sent * 100 / file.size) : 100) + '%';
+    }
+    show();
+
+    async function send(chunk) {
+      for (var attempt = 0; ; attempt++) {
+        try {
+          var res = await request('PATCH', upload.url, {
+            'Upload-Offset': String(chunk[0]),
+            'Content-Type': 'application/offset+octet-stream'
+          }, file.slice(chunk[0], chunk[1]), function (e) {
+            inFlight[chunk[0]] = e.loaded;
+            show();
+          });
+          if (res.status >= 400 && res.status < 500) {
+            throw Object.assign(new Error(res.responseText || res.statusText), { fatal: true });
+          }
+          if (res.status < 300) {
+            return;
+          }
+        } catch (e) {
+          if (e.fatal || attempt >= RETRIES) { throw e; }
+        } finally {
+          delete inFlight[chunk[0]];
+        }
+        await sleep(Math.min(30000, 500 * Math.pow(2, attempt)));
+      }
+    }
+
+    async function worker() {
+      var chunk;
+      while ((chunk = chunks.shift())) {
+        await send(chunk);
+        done += chunk[1] - chunk[0];
+        show();
+      }
+    }
+
+    var workers = [];
+    for (var i = 0; i < PARALLEL; i++) { workers.push(worker()); }
+    await Promise.all(workers);
+
+    var result = await request('HEAD', upload.url, {}, null);
+    localStorage.removeItem(key);
+    var stored = result.getResponseHeader('Upload-Name');
+    item.textContent = file.name + ': done' + (stored ? ' (stored as ' + decodeURIComponent(stored) + ')' : '');
+  }
+
+  form.addEventListener('submit', async function (event) {
+    event.preventDefault();
+    var files = Array.prototype.slice.call(input.files);
+    input.value = '';
+    for (var i = 0; i < files.length; i++) {
+      var item = document.createElement('li');
+      list.appendChild(item);
+      try {
+        await upload(files[i], item);
+      } catch (e) {
+        item.textContent = files[i].name + ': failed (' + e.message + '), select it again to resume';
+      }
+    }
+  });
+})();